@@ -46,7 +46,8 @@ dependencies {
     implementation(group = "org.bouncycastle", name = "bcprov-jdk15on", version = "1.70")
     implementation(group = "org.bouncycastle", name = "bctls-jdk15on", version = "1.70")
     implementation(group = "org.modelmapper", name = "modelmapper", version = "3.1.1")
-    implementation("com.athaydes.rawhttp:rawhttp-core:2.5.2")
+    implementation("org.brotli:dec:0.1.2")
+    implementation("com.twitter:hpack:1.0.2")
 
     compileOnly("org.jetbrains:annotations:24.0.1")
     compileOnly("org.projectlombok:lombok")
@@ -57,5 +58,18 @@ dependencies {
 }
 
 tasks.getByName<Test>("test") {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+tasks.register<Test>("benchmark") {
+    description = "Runs the benchmarks excluded from the test task."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    testLogging.showStandardStreams = true
 }
\ No newline at end of file
@@ -12,17 +12,20 @@ import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import ru.serega6531.packmate.model.Pattern;
 import ru.serega6531.packmate.model.Stream;
+import ru.serega6531.packmate.model.enums.CaptureMode;
 import ru.serega6531.packmate.model.pojo.StreamDto;
 import ru.serega6531.packmate.pcap.FilePcapWorker;
 import ru.serega6531.packmate.pcap.LivePcapWorker;
 import ru.serega6531.packmate.pcap.NoOpPcapWorker;
 import ru.serega6531.packmate.pcap.PcapWorker;
+import ru.serega6531.packmate.pcap.WatchPcapWorker;
 import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
 import ru.serega6531.packmate.service.ServicesService;
-import ru.serega6531.packmate.service.StreamService;
+import ru.serega6531.packmate.service.StreamPipeline;
 import ru.serega6531.packmate.service.SubscriptionService;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
-import java.net.UnknownHostException;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -35,18 +38,37 @@ public class ApplicationConfiguration {
     @Bean(destroyMethod = "stop")
     @Autowired
     public PcapWorker pcapWorker(ServicesService servicesService,
-                                 StreamService streamService,
+                                 StreamPipeline pipeline,
+                                 InFlightPatternMatcher inFlightMatcher,
                                  SubscriptionService subscriptionService,
+                                 IpNetworkSet localNetworks,
                                  PackmateProperties properties
-    ) throws PcapNativeException, UnknownHostException {
+    ) throws PcapNativeException {
         return switch (properties.captureMode()) {
-            case LIVE -> new LivePcapWorker(servicesService, streamService, properties.localIp(), properties.interfaceName());
+            case LIVE -> new LivePcapWorker(servicesService, pipeline, inFlightMatcher, localNetworks, properties.interfaceName(),
+                    properties.processing(), properties.capture());
             case FILE ->
-                    new FilePcapWorker(servicesService, streamService, subscriptionService, properties.localIp(), properties.pcapFile());
+                    new FilePcapWorker(servicesService, pipeline, inFlightMatcher, subscriptionService, localNetworks, properties.pcapFile(),
+                            properties.timeout(), properties.processing());
+            case WATCH ->
+                    new WatchPcapWorker(servicesService, pipeline, inFlightMatcher, subscriptionService, localNetworks, properties.pcapFile(),
+                            properties.timeout(), properties.processing());
             case VIEW -> new NoOpPcapWorker();
         };
     }
 
+    /**
+     * Адреса и подсети вулнбоксов: packmate.local-ip может содержать несколько значений через запятую
+     */
+    @Bean
+    public IpNetworkSet localNetworks(PackmateProperties properties) {
+        IpNetworkSet localNetworks = IpNetworkSet.of(properties.localIp());
+        if (localNetworks.isEmpty() && properties.captureMode() != CaptureMode.VIEW) {
+            throw new IllegalArgumentException("packmate.local-ip is not set");
+        }
+        return localNetworks;
+    }
+
     @Bean
     public ModelMapper modelMapper() {
         ModelMapper modelMapper = new ModelMapper();
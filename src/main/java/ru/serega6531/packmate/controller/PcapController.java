@@ -6,8 +6,11 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
 import ru.serega6531.packmate.service.PcapService;
 
+import java.util.List;
+
 @RestController
 @RequestMapping("/api/pcap/")
 public class PcapController {
@@ -29,4 +32,9 @@ public class PcapController {
         service.start();
     }
 
+    @GetMapping("/stats")
+    public List<CaptureStatsDto> stats() {
+        return service.getCaptureStats();
+    }
+
 }
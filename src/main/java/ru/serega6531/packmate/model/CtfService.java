@@ -33,6 +33,10 @@ public class CtfService {
 
     private boolean parseWebSockets;
 
+    // значение по умолчанию нужно, чтобы столбец добавился в таблицу, где уже есть сервисы
+    @Column(nullable = false, columnDefinition = "boolean default false")
+    private boolean parseHttp2;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -70,6 +70,10 @@ public class Stream {
     @Column(columnDefinition = "char(3)")
     private String userAgentHash;
 
+    // адрес вулнбокса, к которому относится стрим
+    @Column(name = "local_ip", length = 39)
+    private String localIp;
+
     @Column(name = "size_bytes", nullable = false)
     private Integer sizeBytes;
 
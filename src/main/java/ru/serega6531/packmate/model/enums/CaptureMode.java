@@ -2,6 +2,6 @@ package ru.serega6531.packmate.model.enums;
 
 public enum CaptureMode {
 
-    LIVE, FILE, VIEW
+    LIVE, FILE, WATCH, VIEW
 
 }
@@ -4,8 +4,9 @@ public enum SubscriptionMessageType {
     SAVE_SERVICE, SAVE_PATTERN,
     DELETE_SERVICE,
     NEW_STREAM,
-    FINISH_LOOKBACK,
+    FINISH_LOOKBACK, LOOKBACK_PROGRESS,
     COUNTERS_UPDATE,
     ENABLE_PATTERN, DISABLE_PATTERN,
-    PCAP_STARTED, PCAP_STOPPED
+    PCAP_STARTED, PCAP_STOPPED,
+    PATTERN_SEEN
 }
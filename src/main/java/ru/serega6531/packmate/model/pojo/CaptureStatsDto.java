@@ -0,0 +1,18 @@
+package ru.serega6531.packmate.model.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Счетчики libpcap для одного интерфейса с момента начала перехвата
+ */
+@Data
+@AllArgsConstructor
+public class CaptureStatsDto {
+
+    private String interfaceName;
+    private long received;
+    private long dropped; // не поместились в буфер ядра
+    private long ifDropped; // отброшены сетевым интерфейсом или драйвером
+
+}
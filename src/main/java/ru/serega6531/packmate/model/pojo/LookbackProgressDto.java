@@ -0,0 +1,15 @@
+package ru.serega6531.packmate.model.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class LookbackProgressDto {
+
+    private int patternId;
+    private long streamsScanned;
+    private long streamsTotal;
+    private int percent;
+
+}
@@ -0,0 +1,14 @@
+package ru.serega6531.packmate.model.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class PatternSeenDto {
+
+    private int patternId;
+    private int service;
+    private long timestamp;
+
+}
@@ -12,5 +12,6 @@ public class ServiceDto {
     private boolean urldecodeHttpRequests;
     private boolean mergeAdjacentPackets;
     private boolean parseWebSockets;
+    private boolean parseHttp2;
 
 }
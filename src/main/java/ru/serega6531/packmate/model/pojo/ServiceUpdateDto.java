@@ -12,5 +12,6 @@ public class ServiceUpdateDto {
     private boolean urldecodeHttpRequests;
     private boolean mergeAdjacentPackets;
     private boolean parseWebSockets;
+    private boolean parseHttp2;
 
 }
\ No newline at end of file
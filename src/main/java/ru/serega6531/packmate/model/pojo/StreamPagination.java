@@ -17,4 +17,7 @@ public class StreamPagination {
     @Nullable
     private Pattern pattern; // если не null, ищем стримы с этим паттерном
 
+    @Nullable
+    private String localIp; // если не null, ищем стримы этого вулнбокса
+
 }
@@ -1,259 +1,244 @@
 package ru.serega6531.packmate.pcap;
 
-import com.google.common.collect.*;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.pcap4j.core.BpfProgram;
 import org.pcap4j.core.PacketListener;
 import org.pcap4j.core.PcapHandle;
 import org.pcap4j.packet.*;
 import ru.serega6531.packmate.model.CtfService;
 import ru.serega6531.packmate.model.enums.Protocol;
-import ru.serega6531.packmate.model.pojo.UnfinishedStream;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
 import ru.serega6531.packmate.service.ServicesService;
-import ru.serega6531.packmate.service.StreamService;
+import ru.serega6531.packmate.service.StreamPipeline;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Optional;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 @Slf4j
 public abstract class AbstractPcapWorker implements PcapWorker, PacketListener {
 
     private final ServicesService servicesService;
-    private final StreamService streamService;
+    private final StreamPipeline pipeline;
+    private final InFlightPatternMatcher inFlightMatcher;
 
     protected PcapHandle pcap = null;
     protected final ExecutorService loopExecutorService;
 
     protected String filter = "tcp or udp";
 
-    // во время работы должен быть != null
-    protected ExecutorService processorExecutorService;
+    // во время работы должен быть не пустым
+    protected List<ProcessorShard> shards = List.of();
+    private FlowMemoryBudget budget;
 
-    private final InetAddress localIp;
+    private final IpNetworkSet localNetworks;
 
-    private long packetIdCounter = 0;  // оно однопоточное, так что пусть будет без atomic
+    // используется только потоком чтения пакетов
+    private final DecodedPacket pcap4jPacket = new DecodedPacket();
 
-    private final ListMultimap<UnfinishedStream, ru.serega6531.packmate.model.Packet> unfinishedTcpStreams = ArrayListMultimap.create();
-    private final ListMultimap<UnfinishedStream, ru.serega6531.packmate.model.Packet> unfinishedUdpStreams = ArrayListMultimap.create();
-
-    // в следующих мапах в значениях находится srcIp соответствующего пакета
-    private final SetMultimap<UnfinishedStream, Pair<InetAddress, Integer>> fins = HashMultimap.create();
-    private final SetMultimap<UnfinishedStream, Pair<InetAddress, Integer>> acks = HashMultimap.create();
+    protected AbstractPcapWorker(ServicesService servicesService,
+                              StreamPipeline pipeline,
+                              InFlightPatternMatcher inFlightMatcher,
+                              IpNetworkSet localNetworks) {
+        this(servicesService, pipeline, inFlightMatcher, localNetworks, 1);
+    }
 
+    /**
+     * @param loopThreads число потоков чтения пакетов, например по одному на каждый интерфейс
+     */
     protected AbstractPcapWorker(ServicesService servicesService,
-                              StreamService streamService,
-                              InetAddress localIp) throws UnknownHostException {
+                              StreamPipeline pipeline,
+                              InFlightPatternMatcher inFlightMatcher,
+                              IpNetworkSet localNetworks,
+                              int loopThreads) {
         this.servicesService = servicesService;
-        this.streamService = streamService;
+        this.pipeline = pipeline;
+        this.inFlightMatcher = inFlightMatcher;
+        this.localNetworks = localNetworks;
 
-        this.localIp = localIp;
+        BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                .namingPattern(loopThreads == 1 ? "pcap-loop" : "pcap-loop-%d").build();
+        loopExecutorService = Executors.newFixedThreadPool(loopThreads, factory);
+    }
 
+    /**
+     * Создает шарды, у каждого свой поток и ограниченная очередь пакетов.
+     * Лимиты памяти незавершенных стримов общие для всех шардов.
+     */
+    protected void initShards(PackmateProperties.ProcessingProperties processing) {
         BasicThreadFactory factory = new BasicThreadFactory.Builder()
-                .namingPattern("pcap-loop").build();
-        loopExecutorService = Executors.newSingleThreadExecutor(factory);
+                .namingPattern("pcap-processor-%d").build();
+
+        final int shardsCount = Math.max(1, processing.shards());
+        final int queueSize = Math.max(1, processing.queueSize());
+        budget = FlowMemoryBudget.of(processing);
+
+        List<ProcessorShard> created = new ArrayList<>(shardsCount);
+        for (int i = 0; i < shardsCount; i++) {
+            created.add(new ProcessorShard(factory, queueSize, pipeline, inFlightMatcher, budget));
+        }
+        shards = created;
     }
 
     public void gotPacket(Packet rawPacket) {
-        InetAddress sourceIp;
-        InetAddress destIp;
-        int ttl;
+        final DecodedPacket packet = pcap4jPacket;
+        packet.reset(pcap.getTimestamp().getTime());
 
+        if (decodePcap4jPacket(rawPacket, packet)) {
+            gotDecodedPacket(packet);
+        }
+    }
+
+    /**
+     * Заполняет packet по разобранному pcap4j пакету
+     * @return true, если это tcp или udp пакет
+     */
+    static boolean decodePcap4jPacket(Packet rawPacket, DecodedPacket packet) {
         if (rawPacket.contains(IpV4Packet.class)) {
             final IpV4Packet.IpV4Header ipHeader = rawPacket.get(IpV4Packet.class).getHeader();
-            sourceIp = ipHeader.getSrcAddr();
-            destIp = ipHeader.getDstAddr();
-            ttl = Byte.toUnsignedInt(ipHeader.getTtl());
+            setAddresses(packet, ipHeader.getSrcAddr(), ipHeader.getDstAddr());
+            packet.ttl = Byte.toUnsignedInt(ipHeader.getTtl());
         } else if (rawPacket.contains(IpV6Packet.class)) {
             final IpV6Packet.IpV6Header ipHeader = rawPacket.get(IpV6Packet.class).getHeader();
-            sourceIp = ipHeader.getSrcAddr();
-            destIp = ipHeader.getDstAddr();
-            ttl = Byte.toUnsignedInt(ipHeader.getHopLimit());
+            setAddresses(packet, ipHeader.getSrcAddr(), ipHeader.getDstAddr());
+            packet.ttl = Byte.toUnsignedInt(ipHeader.getHopLimit());
         } else {
-            return;
+            return false;
         }
 
-        final long time = pcap.getTimestamp().getTime();
-
+        final Packet payload;
         if (rawPacket.contains(TcpPacket.class)) {
-            final TcpPacket packet = rawPacket.get(TcpPacket.class);
-            gotTcpPacket(packet, sourceIp, destIp, ttl, time);
+            final TcpPacket tcpPacket = rawPacket.get(TcpPacket.class);
+            final TcpPacket.TcpHeader tcpHeader = tcpPacket.getHeader();
+            packet.protocol = Protocol.TCP;
+            packet.sourcePort = tcpHeader.getSrcPort().valueAsInt();
+            packet.destPort = tcpHeader.getDstPort().valueAsInt();
+            packet.sequence = tcpHeader.getSequenceNumberAsLong();
+            packet.ack = tcpHeader.getAck();
+            packet.fin = tcpHeader.getFin();
+            packet.syn = tcpHeader.getSyn();
+            packet.rst = tcpHeader.getRst();
+            payload = tcpPacket.getPayload();
         } else if (rawPacket.contains(UdpPacket.class)) {
-            final UdpPacket packet = rawPacket.get(UdpPacket.class);
-            gotUdpPacket(packet, sourceIp, destIp, ttl, time);
+            final UdpPacket udpPacket = rawPacket.get(UdpPacket.class);
+            final UdpPacket.UdpHeader udpHeader = udpPacket.getHeader();
+            packet.protocol = Protocol.UDP;
+            packet.sourcePort = udpHeader.getSrcPort().valueAsInt();
+            packet.destPort = udpHeader.getDstPort().valueAsInt();
+            payload = udpPacket.getPayload();
+        } else {
+            return false;
         }
-    }
 
-    private void gotTcpPacket(TcpPacket packet, InetAddress sourceIp, InetAddress destIp, int ttl, long time) {
-        final TcpPacket.TcpHeader tcpHeader = packet.getHeader();
-        int sourcePort = tcpHeader.getSrcPort().valueAsInt();
-        int destPort = tcpHeader.getDstPort().valueAsInt();
-        boolean ack = tcpHeader.getAck();
-        boolean fin = tcpHeader.getFin();
-        boolean rst = tcpHeader.getRst();
-        byte[] content = packet.getPayload() != null ? packet.getPayload().getRawData() : new byte[0];
-
-        String sourceIpString = sourceIp.getHostAddress();
-        String destIpString = destIp.getHostAddress();
-
-        final Optional<CtfService> serviceOptional =
-                servicesService.findService(sourceIp, sourcePort, destIp, destPort);
-
-        if (serviceOptional.isPresent()) {
-            processorExecutorService.execute(() -> {
-                UnfinishedStream stream = addNewPacket(sourceIp, destIp, time, sourcePort, destPort, ttl, content, Protocol.TCP);
-
-                if (log.isDebugEnabled()) {
-                    log.debug("tcp {} {}:{} -> {}:{}, packet number {}",
-                            serviceOptional.get(), sourceIpString, sourcePort, destIpString, destPort,
-                            unfinishedTcpStreams.get(stream).size());
-                }
-
-                checkTcpTermination(ack, fin, rst, new ImmutablePair<>(sourceIp, sourcePort), new ImmutablePair<>(destIp, destPort), stream);
-            });
-        } else { // сервис не найден
-            if (log.isTraceEnabled()) {
-                log.trace("tcp {}:{} -> {}:{}", sourceIpString, sourcePort, destIpString, destPort);
-            }
-        }
+        // getRawData возвращает новый массив, поэтому он не копируется еще раз
+        final byte[] content = payload != null ? payload.getRawData() : new byte[0];
+        packet.buffer = ByteBuffer.wrap(content);
+        packet.payloadOffset = 0;
+        packet.payloadLength = content.length;
+        packet.decoded = true;
+        return true;
     }
 
-    private void gotUdpPacket(UdpPacket packet, InetAddress sourceIp, InetAddress destIp, int ttl, long time) {
-        final UdpPacket.UdpHeader udpHeader = packet.getHeader();
-        int sourcePort = udpHeader.getSrcPort().valueAsInt();
-        int destPort = udpHeader.getDstPort().valueAsInt();
-        byte[] content = packet.getPayload() != null ? packet.getPayload().getRawData() : new byte[0];
-
-        String sourceIpString = sourceIp.getHostAddress();
-        String destIpString = destIp.getHostAddress();
-
-        final Optional<CtfService> serviceOptional =
-                servicesService.findService(sourceIp, sourcePort, destIp, destPort);
-
-        if (serviceOptional.isPresent()) {
-            processorExecutorService.execute(() -> {
-                UnfinishedStream stream = addNewPacket(sourceIp, destIp, time, sourcePort, destPort, ttl, content, Protocol.UDP);
-
-                if (log.isDebugEnabled()) {
-                    log.debug("udp {} {}:{} -> {}:{}, packet number {}",
-                            serviceOptional.get(), sourceIpString, sourcePort, destIpString, destPort,
-                            unfinishedUdpStreams.get(stream).size());
-                }
-            });
-        } else { // сервис не найден
-            if (log.isTraceEnabled()) {
-                log.trace("udp {}:{} -> {}:{}", sourceIpString, sourcePort, destIpString, destPort);
-            }
-        }
+    private static void setAddresses(DecodedPacket packet, InetAddress sourceIp, InetAddress destIp) {
+        packet.sourceHi = FlowKey.high(sourceIp);
+        packet.sourceLo = FlowKey.low(sourceIp);
+        packet.destHi = FlowKey.high(destIp);
+        packet.destLo = FlowKey.low(destIp);
     }
 
-    private UnfinishedStream addNewPacket(InetAddress sourceIp, InetAddress destIp, long time,
-                                          int sourcePort, int destPort, int ttl, byte[] content, Protocol protocol) {
-        var incoming = destIp.equals(localIp);
-        var stream = new UnfinishedStream(sourceIp, destIp, sourcePort, destPort, protocol);
-
-        var packet = ru.serega6531.packmate.model.Packet.builder()
-                .tempId(packetIdCounter++)
-                .ttl(ttl)
-                .timestamp(time)
-                .incoming(incoming)
-                .content(content)
-                .build();
+    /**
+     * Выполняется в потоке чтения пакетов, потоков может быть несколько.
+     * Объект packet после возврата может быть переиспользован.
+     */
+    protected void gotDecodedPacket(DecodedPacket packet) {
+        final boolean sourceIsLocal = localNetworks.contains(packet.sourceHi, packet.sourceLo);
+        final boolean incoming = localNetworks.contains(packet.destHi, packet.destLo);
 
-        final var streams = (protocol == Protocol.TCP) ? this.unfinishedTcpStreams : this.unfinishedUdpStreams;
+        final CtfService service = servicesService.findService(sourceIsLocal, packet.sourcePort, incoming, packet.destPort);
 
-        if (!streams.containsKey(stream)) {
-            log.debug("New stream started");
+        if (service == null) {  // сервис не найден
+            if (log.isTraceEnabled()) {
+                log.trace("{} {}:{} -> {}:{}", packet.protocol,
+                        FlowKey.toInetAddress(packet.sourceHi, packet.sourceLo).getHostAddress(), packet.sourcePort,
+                        FlowKey.toInetAddress(packet.destHi, packet.destLo).getHostAddress(), packet.destPort);
+            }
+            return;
         }
 
-        streams.put(stream, packet);
-        return stream;
+        final FlowKey key = new FlowKey(packet.sourceHi, packet.sourceLo, packet.sourcePort,
+                packet.destHi, packet.destLo, packet.destPort, packet.protocol);
+        final ProcessorShard shard = getShard(key);
+
+        final byte[] content = packet.copyPayload();
+        final long time = packet.timestamp;
+        final int ttl = packet.ttl;
+        final boolean tcp = packet.protocol == Protocol.TCP;
+        final long sequence = packet.sequence;
+        final boolean ack = packet.ack;
+        final boolean fin = packet.fin;
+        final boolean syn = packet.syn;
+        final boolean rst = packet.rst;
+
+        shard.execute(() -> {
+            Flow flow = shard.addPacket(key, service, incoming, time, ttl, sequence, syn, content);
+
+            if (log.isDebugEnabled()) {
+                log.debug("{} {}, packet number {}", service, key, flow.packets.size());
+            }
+
+            if (tcp) {
+                shard.checkTcpTermination(flow, key.fromFirst, ack, fin, rst);
+            }
+        });
     }
 
     /**
-     * Udp не имеет фазы закрытия, поэтому закрывается только по таймауту
+     * Ключ потока не зависит от направления пакета, поэтому оба направления попадают в один шард
      */
-    private void checkTcpTermination(boolean ack, boolean fin, boolean rst,
-                                     Pair<InetAddress, Integer> sourceIpAndPort,
-                                     Pair<InetAddress, Integer> destIpAndPort,
-                                     UnfinishedStream stream) {
-
-        if (fin) {
-            fins.put(stream, sourceIpAndPort);
-        }
-
-        if (ack && fins.containsEntry(stream, destIpAndPort)) {  // проверяем destIp, потому что ищем ответ на его fin
-            acks.put(stream, sourceIpAndPort);
-        }
-
-        // если соединение разорвано с помощью rst или закрыто с помощью fin-ack-fin-ack
-        if (rst || (acks.containsEntry(stream, sourceIpAndPort) && acks.containsEntry(stream, destIpAndPort))) {
-            streamService.saveNewStream(stream, unfinishedTcpStreams.get(stream));
-
-            unfinishedTcpStreams.removeAll(stream);
-            fins.removeAll(stream);
-            acks.removeAll(stream);
-        }
+    private ProcessorShard getShard(FlowKey key) {
+        return shards.get(Math.floorMod(key.hashCode(), shards.size()));
     }
 
     @Override
     @SneakyThrows
     public void closeAllStreams(Protocol protocol) {
-        final var streams = (protocol == Protocol.TCP) ? this.unfinishedTcpStreams : this.unfinishedUdpStreams;
-
-        Multimaps.asMap(streams).forEach((key, value) ->
-                streamService.saveNewStream(key, new ArrayList<>(value)));
+        List<Future<?>> futures = new ArrayList<>(shards.size());
+        for (ProcessorShard shard : shards) {
+            futures.add(shard.submit(() -> {
+                shard.closeAllStreams(protocol);
+                return null;
+            }));
+        }
 
-        streams.clear();
-        if (protocol == Protocol.TCP) {
-            fins.clear();
-            acks.clear();
+        for (Future<?> future : futures) {
+            future.get();
         }
     }
 
     @Override
     @SneakyThrows
-    public int closeTimeoutStreams(Protocol protocol, long timeoutMillis) {
-        return processorExecutorService.submit(() -> {
-            int streamsClosed = 0;
-
-            final long time = System.currentTimeMillis();
-            final var streams = (protocol == Protocol.TCP) ? this.unfinishedTcpStreams : this.unfinishedUdpStreams;
-
-            final var oldStreams = Multimaps.asMap(streams).entrySet().stream()
-                    .filter(entry -> {
-                        final var packets = entry.getValue();
-                        return time - packets.get(packets.size() - 1).getTimestamp() > timeoutMillis;
-                    })
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-
-            for (var entry : oldStreams.entrySet()) {
-                final UnfinishedStream stream = entry.getKey();
-                final var packets = entry.getValue();
-
-                if (streamService.saveNewStream(stream, packets)) {
-                    streamsClosed++;
-                }
-
-                if (protocol == Protocol.TCP) {
-                    fins.removeAll(stream);
-                    acks.removeAll(stream);
-                }
-
-                streams.removeAll(stream);
-            }
+    public int closeTimeoutStreams(Protocol protocol, long timeoutMillis, long now) {
+        List<Future<Integer>> futures = new ArrayList<>(shards.size());
+        for (ProcessorShard shard : shards) {
+            futures.add(shard.submit(() -> shard.closeTimeoutStreams(protocol, timeoutMillis, now)));
+        }
 
-            return streamsClosed;
-        }).get();
+        int streamsClosed = 0;
+        for (Future<Integer> future : futures) {
+            streamsClosed += future.get();
+        }
+
+        return streamsClosed;
     }
 
     @Override
@@ -268,4 +253,15 @@ public abstract class AbstractPcapWorker implements PcapWorker, PacketListener {
             pcap.setFilter(filter, BpfProgram.BpfCompileMode.OPTIMIZE);
         }
     }
+
+    @Override
+    public List<CaptureStatsDto> getCaptureStats() {
+        return List.of();
+    }
+
+    protected String getShardsState() {
+        return shards.stream()
+                .map(ProcessorShard::toString)
+                .collect(Collectors.joining(", ")) + ", " + budget;
+    }
 }
@@ -0,0 +1,88 @@
+package ru.serega6531.packmate.pcap;
+
+import ru.serega6531.packmate.model.enums.Protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Заголовки tcp/udp пакета, разобранные без создания объектов для каждого уровня.
+ * Объект переиспользуется для всех пакетов одного потока чтения: после обработки пакета
+ * его поля перезаписываются, а полезная нагрузка указывает в буфер, из которого пакет прочитан.
+ */
+final class DecodedPacket {
+
+    boolean decoded;
+    long timestamp;
+
+    // адреса упакованы так же, как в FlowKey
+    long sourceHi;
+    long sourceLo;
+    long destHi;
+    long destLo;
+    int sourcePort;
+    int destPort;
+    int ttl;
+    Protocol protocol;
+
+    long sequence;  // номер последовательности tcp, беззнаковый
+    boolean ack;
+    boolean fin;
+    boolean syn;
+    boolean rst;
+
+    ByteBuffer buffer;
+    int payloadOffset;
+    int payloadLength;
+
+    void reset(long timestamp) {
+        this.decoded = false;
+        this.timestamp = timestamp;
+        this.ack = false;
+        this.fin = false;
+        this.syn = false;
+        this.rst = false;
+    }
+
+    /**
+     * Копирует полезную нагрузку: это единственное копирование данных пакета на пути до сборщика стримов
+     */
+    byte[] copyPayload() {
+        if (buffer.hasArray() && payloadOffset == 0 && payloadLength == buffer.array().length) {
+            return buffer.array();  // массив уже принадлежит только этому пакету
+        }
+
+        byte[] payload = new byte[payloadLength];
+        buffer.get(payloadOffset, payload);
+        return payload;
+    }
+
+    /**
+     * Копия пакета, не зависящая от буфера чтения, для передачи в другой поток.
+     * Полезная нагрузка копируется сразу, поэтому copyPayload у копии уже ничего не копирует.
+     */
+    DecodedPacket detach() {
+        DecodedPacket copy = new DecodedPacket();
+        copy.decoded = decoded;
+        copy.timestamp = timestamp;
+        copy.sourceHi = sourceHi;
+        copy.sourceLo = sourceLo;
+        copy.destHi = destHi;
+        copy.destLo = destLo;
+        copy.sourcePort = sourcePort;
+        copy.destPort = destPort;
+        copy.ttl = ttl;
+        copy.protocol = protocol;
+        copy.sequence = sequence;
+        copy.ack = ack;
+        copy.fin = fin;
+        copy.syn = syn;
+        copy.rst = rst;
+
+        byte[] payload = decoded ? copyPayload() : new byte[0];
+        copy.buffer = ByteBuffer.wrap(payload);
+        copy.payloadOffset = 0;
+        copy.payloadLength = payload.length;
+        return copy;
+    }
+
+}
@@ -2,7 +2,6 @@ package ru.serega6531.packmate.pcap;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.tomcat.util.threads.InlineExecutorService;
 import org.pcap4j.core.PcapNativeException;
 import org.pcap4j.core.Pcaps;
 import org.pcap4j.packet.Packet;
@@ -10,67 +9,241 @@ import ru.serega6531.packmate.exception.PcapFileNotFoundException;
 import ru.serega6531.packmate.model.enums.Protocol;
 import ru.serega6531.packmate.model.enums.SubscriptionMessageType;
 import ru.serega6531.packmate.model.pojo.SubscriptionMessage;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
 import ru.serega6531.packmate.service.ServicesService;
-import ru.serega6531.packmate.service.StreamService;
+import ru.serega6531.packmate.service.StreamPipeline;
 import ru.serega6531.packmate.service.SubscriptionService;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
 import java.io.EOFException;
 import java.io.File;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @Slf4j
 public class FilePcapWorker extends AbstractPcapWorker {
 
-    private final File directory = new File("pcaps");
+    protected final File directory = new File("pcaps");
 
+    private final StreamPipeline pipeline;
     private final SubscriptionService subscriptionService;
-    private final File file;
+    private final String filename;
+    private final int readerThreads;
+    private List<File> files;
+
+    private final long udpStreamTimeoutMillis;
+    private final long tcpStreamTimeoutMillis;
+    private final long checkIntervalMillis;
+
+    private volatile PcapFileMerge merge;
+    private volatile boolean running = false;
+
+    // время по меткам прочитанных пакетов, меняется только в потоке чтения
+    private long virtualTime = 0;
+    private long nextCheckTime = 0;
 
     public FilePcapWorker(ServicesService servicesService,
-                          StreamService streamService,
+                          StreamPipeline pipeline,
+                          InFlightPatternMatcher inFlightMatcher,
                           SubscriptionService subscriptionService,
-                          InetAddress localIp,
-                          String filename) throws UnknownHostException {
-        super(servicesService, streamService, localIp);
+                          IpNetworkSet localNetworks,
+                          String filename,
+                          PackmateProperties.TimeoutProperties timeout,
+                          PackmateProperties.ProcessingProperties processing) {
+        this(servicesService, pipeline, inFlightMatcher, subscriptionService, localNetworks, filename, timeout, processing, true);
+    }
+
+    /**
+     * @param requireFiles проверить, что по имени filename есть хотя бы один файл
+     */
+    protected FilePcapWorker(ServicesService servicesService,
+                             StreamPipeline pipeline,
+                             InFlightPatternMatcher inFlightMatcher,
+                             SubscriptionService subscriptionService,
+                             IpNetworkSet localNetworks,
+                             String filename,
+                             PackmateProperties.TimeoutProperties timeout,
+                             PackmateProperties.ProcessingProperties processing,
+                             boolean requireFiles) {
+        super(servicesService, pipeline, inFlightMatcher, localNetworks);
+        this.pipeline = pipeline;
         this.subscriptionService = subscriptionService;
 
-        file = new File(directory, filename);
-        validateFileExists();
+        this.udpStreamTimeoutMillis = TimeUnit.SECONDS.toMillis(timeout.udpStreamTimeout());
+        this.tcpStreamTimeoutMillis = TimeUnit.SECONDS.toMillis(timeout.tcpStreamTimeout());
+        this.checkIntervalMillis = TimeUnit.SECONDS.toMillis(timeout.checkInterval());
 
-        processorExecutorService = new InlineExecutorService();
+        this.filename = filename;
+        this.readerThreads = Math.max(1, processing.fileReaders());
+        files = requireFiles ? findFiles() : List.of();
+
+        // файл читается быстрее, чем обрабатываются пакеты, поэтому поток чтения часто ждет места в очередях шардов
+        initShards(processing);
     }
 
     @SneakyThrows
     @Override
     public void start() {
+        running = true;
+        files = findFiles();  // за время ожидания могли появиться новые файлы
+
+        if (files.size() > 1) {
+            log.info("Using {} files from {}", files.size(), directory.getAbsolutePath());
+            loopExecutorService.execute(this::runMergedScan);
+            return;
+        }
+
+        final File file = files.get(0);
         log.info("Using file " + file.getAbsolutePath());
-        pcap = Pcaps.openOffline(file.getAbsolutePath());
 
-        applyFilter();
+        loopExecutorService.execute(() -> {
+            readFile(file);
+            finishReading();
+        });
+    }
+
+    /**
+     * Читает файл целиком в потоке чтения. Стримы, не закончившиеся к концу файла, остаются открытыми
+     * и закрываются по таймауту, когда время пакетов уйдет вперед.
+     */
+    @SneakyThrows
+    protected void readFile(File file) {
+        try (MappedPcapReader reader = MappedPcapReader.open(file.toPath())) {
+            if (reader != null) {
+                readMapped(reader);
+                return;
+            }
+        }
 
-        loopExecutorService.execute(this::runScan);
+        log.info("Format of {} is not supported by the mapped reader, using pcap4j", file.getName());
+        readWithPcap4j(file);
     }
 
     @SneakyThrows
-    private void runScan() {
-        while (pcap.isOpen()) {
+    private void readWithPcap4j(File file) {
+        pcap = Pcaps.openOffline(file.getAbsolutePath());
+        applyFilter();
+
+        while (running && pcap.isOpen()) {
             try {
                 final Packet packet = pcap.getNextPacketEx();
                 gotPacket(packet);
+                advanceClock(pcap.getTimestamp().getTime());
             } catch (PcapNativeException e) {
                 log.error("Pcap read error: {}", e.getMessage());
                 //noinspection BusyWait
                 Thread.sleep(100);  // чтобы ошибки не летели слишком быстро
             } catch (EOFException e) {
-                log.info("All packets processed");
-                stop();
+                break;
             }
         }
+
+        if (pcap.isOpen()) {
+            pcap.close();
+        }
+    }
+
+    /**
+     * Чтение без pcap4j: файл отображается в память, заголовки разбираются на месте.
+     * Фильтр BPF здесь не применяется, пакеты чужих сервисов отбрасываются при поиске сервиса.
+     */
+    private void readMapped(MappedPcapReader reader) throws IOException {
+        final DecodedPacket packet = new DecodedPacket();
+
+        while (running && reader.next(packet)) {
+            if (packet.decoded) {
+                gotDecodedPacket(packet);
+            }
+            advanceClock(packet.timestamp);
+        }
+
+        if (reader.getSkippedPackets() > 0) {
+            log.warn("{} packets from interfaces with unsupported link types were skipped", reader.getSkippedPackets());
+        }
+    }
+
+    private void finishReading() {
+        if (running) {
+            log.info("All packets processed");
+            stop();
+        }
+    }
+
+    protected boolean isRunning() {
+        return running;
+    }
+
+    protected void setRunning() {
+        running = true;
+    }
+
+    /**
+     * Одновременное чтение нескольких файлов, каждый файл разбирается в своем потоке
+     */
+    @SneakyThrows
+    private void runMergedScan() {
+        final List<PcapFileSource> sources = new ArrayList<>(files.size());
+        for (File file : files) {
+            PcapFileSource source = PcapFileSource.open(file.toPath());
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+
+        final PcapFileMerge merge = new PcapFileMerge(sources, readerThreads);
+        this.merge = merge;
+
+        try {
+            DecodedPacket packet;
+            while (running && (packet = merge.next()) != null) {
+                if (packet.decoded) {
+                    gotDecodedPacket(packet);
+                }
+                advanceClock(packet.timestamp);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            merge.close();
+        }
+
+        finishReading();
+    }
+
+    /**
+     * Файл читается быстрее, чем шло время при записи, поэтому таймауты стримов считаются
+     * по меткам времени пакетов. Так стримы закрываются по мере чтения, а не все сразу в конце файла.
+     */
+    private void advanceClock(long packetTime) {
+        virtualTime = Math.max(virtualTime, packetTime);  // пакеты в дампе могут идти не строго по порядку
+
+        if (nextCheckTime == 0) {
+            nextCheckTime = virtualTime + checkIntervalMillis;
+        } else if (virtualTime >= nextCheckTime) {
+            int udpClosed = closeTimeoutStreams(Protocol.UDP, udpStreamTimeoutMillis, virtualTime);
+            int tcpClosed = closeTimeoutStreams(Protocol.TCP, tcpStreamTimeoutMillis, virtualTime);
+            log.debug("{} udp and {} tcp streams closed by timeout", udpClosed, tcpClosed);
+
+            nextCheckTime = virtualTime + checkIntervalMillis;
+        }
     }
 
     @SneakyThrows
     public void stop() {
+        running = false;
+
+        if (merge != null) {
+            merge.close();
+        }
+
         if (pcap != null && pcap.isOpen()) {
             pcap.close();
             log.info("Pcap closed");
@@ -78,18 +251,53 @@ public class FilePcapWorker extends AbstractPcapWorker {
 
         closeAllStreams(Protocol.TCP);
         closeAllStreams(Protocol.UDP);
+        pipeline.awaitCompletion();
 
         subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.PCAP_STOPPED, null));
     }
 
     @Override
     public String getExecutorState() {
-        return "inline";
+        return getShardsState();
     }
 
-    private void validateFileExists() {
-        if (!file.exists()) {
+    /**
+     * packmate.pcap-file может быть файлом, папкой или glob-шаблоном внутри папки pcaps
+     */
+    @SneakyThrows
+    private List<File> findFiles() {
+        final File file = new File(directory, filename);
+
+        if (file.isFile()) {
+            return List.of(file);
+        }
+
+        if (!directory.isDirectory()) {
+            throw new PcapFileNotFoundException(file, directory);
+        }
+
+        final List<File> found;
+        if (file.isDirectory()) {
+            try (Stream<Path> paths = Files.list(file.toPath())) {
+                found = paths.filter(Files::isRegularFile).map(Path::toFile).sorted().toList();
+            }
+        } else {
+            final Path root = directory.toPath();
+            final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + filename);
+
+            try (Stream<Path> paths = Files.walk(root)) {
+                found = paths.filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(root.relativize(path)))
+                        .map(Path::toFile)
+                        .sorted()
+                        .toList();
+            }
+        }
+
+        if (found.isEmpty()) {
             throw new PcapFileNotFoundException(file, directory);
         }
+
+        return found;
     }
 }
@@ -0,0 +1,78 @@
+package ru.serega6531.packmate.pcap;
+
+import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.model.pojo.UnfinishedStream;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Незавершенный стрим в таблице потоков шарда. Меняется только из потока шарда.
+ */
+final class Flow {
+
+    // состояние закрытия tcp: кто из концов соединения отправил fin и подтвердил fin другой стороны
+    private static final int FIN_FIRST = 1;
+    private static final int FIN_SECOND = 1 << 1;
+    private static final int ACK_FIRST = 1 << 2;
+    private static final int ACK_SECOND = 1 << 3;
+
+    final FlowKey key;
+    final UnfinishedStream stream;
+
+    List<Packet> packets = new ArrayList<>();
+    long lastTimestamp;
+
+    // байт полезной нагрузки в памяти, учтенных в FlowMemoryBudget
+    long memoryBytes;
+
+    // не null, если полезная нагрузка стрима вытесняется на диск
+    SpilledPayloads spilled;
+
+    private int tcpState;
+
+    // только для tcp
+    TcpReassembler reassembler;
+    // байт в окне сборки tcp, учтенных в FlowMemoryBudget
+    int reassemblyBytes;
+
+    InFlightPatternMatcher.State inFlightState;
+
+    // ссылки в очереди активности FlowQueue
+    Flow prev;
+    Flow next;
+    boolean queued;
+
+    Flow(FlowKey key) {
+        this.key = key;
+        this.stream = key.toUnfinishedStream();
+    }
+
+    /**
+     * @param fromFirst отправлен ли пакет концом соединения a из ключа
+     * @return true, если соединение разорвано с помощью rst или закрыто с помощью fin-ack-fin-ack
+     */
+    boolean updateTcpState(boolean fromFirst, boolean ack, boolean fin, boolean rst) {
+        if (fin) {
+            tcpState |= fromFirst ? FIN_FIRST : FIN_SECOND;
+        }
+
+        // ищем ответ на fin другой стороны
+        if (ack && (tcpState & (fromFirst ? FIN_SECOND : FIN_FIRST)) != 0) {
+            tcpState |= fromFirst ? ACK_FIRST : ACK_SECOND;
+        }
+
+        return rst || (tcpState & (ACK_FIRST | ACK_SECOND)) == (ACK_FIRST | ACK_SECOND);
+    }
+
+    /**
+     * Забирает накопленные пакеты, после вызова поток больше не используется
+     */
+    List<Packet> takePackets() {
+        List<Packet> result = packets;
+        packets = List.of();
+        return result;
+    }
+
+}
@@ -0,0 +1,130 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.SneakyThrows;
+import ru.serega6531.packmate.model.enums.Protocol;
+import ru.serega6531.packmate.model.pojo.UnfinishedStream;
+import ru.serega6531.packmate.utils.IpNetworkSet;
+
+import java.net.InetAddress;
+
+/**
+ * Ключ потока, не зависящий от направления пакета.
+ * Адреса упаковываются в пары long (IPv4 - в виде IPv4-mapped IPv6), концы соединения упорядочиваются,
+ * так что пакеты в обе стороны дают одинаковый ключ.
+ * Объекты InetAddress создаются только при создании стрима.
+ */
+final class FlowKey {
+
+    // упорядоченные концы соединения: a <= b
+    final long aHi;
+    final long aLo;
+    final long bHi;
+    final long bLo;
+    final int ports;  // порт a в старших 16 битах, порт b в младших
+    final Protocol protocol;
+
+    // true, если отправитель пакета - конец a
+    final boolean fromFirst;
+
+    private final int hash;
+
+    FlowKey(long sourceHi, long sourceLo, int sourcePort, long destHi, long destLo, int destPort, Protocol protocol) {
+        this.protocol = protocol;
+
+        int cmp = Long.compareUnsigned(sourceHi, destHi);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(sourceLo, destLo);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compare(sourcePort, destPort);
+        }
+
+        fromFirst = cmp <= 0;
+        if (fromFirst) {
+            aHi = sourceHi;
+            aLo = sourceLo;
+            bHi = destHi;
+            bLo = destLo;
+            ports = (sourcePort << 16) | destPort;
+        } else {
+            aHi = destHi;
+            aLo = destLo;
+            bHi = sourceHi;
+            bLo = sourceLo;
+            ports = (destPort << 16) | sourcePort;
+        }
+
+        hash = mix(aHi, aLo, bHi, bLo, ports, protocol.ordinal());
+    }
+
+    FlowKey(InetAddress sourceIp, int sourcePort, InetAddress destIp, int destPort, Protocol protocol) {
+        this(high(sourceIp), low(sourceIp), sourcePort, high(destIp), low(destIp), destPort, protocol);
+    }
+
+    /**
+     * Стрим создается в направлении пакета, который создал ключ
+     */
+    UnfinishedStream toUnfinishedStream() {
+        InetAddress a = toInetAddress(aHi, aLo);
+        InetAddress b = toInetAddress(bHi, bLo);
+        int aPort = ports >>> 16;
+        int bPort = ports & 0xFFFF;
+
+        return fromFirst ?
+                new UnfinishedStream(a, b, aPort, bPort, protocol) :
+                new UnfinishedStream(b, a, bPort, aPort, protocol);
+    }
+
+    static int mix(long aHi, long aLo, long bHi, long bLo, int ports, int protocol) {
+        long h = aHi * 0x9E3779B97F4A7C15L;
+        h = (h ^ aLo) * 0x9E3779B97F4A7C15L;
+        h = (h ^ bHi) * 0x9E3779B97F4A7C15L;
+        h = (h ^ bLo) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) ports << 8 | protocol)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static long high(InetAddress address) {
+        return IpNetworkSet.high(address);
+    }
+
+    static long low(InetAddress address) {
+        return IpNetworkSet.low(address);
+    }
+
+    @SneakyThrows
+    static InetAddress toInetAddress(long hi, long lo) {
+        if (hi == 0 && (lo >>> 32) == 0xFFFF) {
+            int ipv4 = (int) lo;
+            return InetAddress.getByAddress(new byte[]{
+                    (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4
+            });
+        }
+
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (hi >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (lo >>> (56 - 8 * i));
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FlowKey o && aHi == o.aHi && aLo == o.aLo && bHi == o.bHi && bLo == o.bLo &&
+                ports == o.ports && protocol == o.protocol;
+    }
+
+    @Override
+    public String toString() {
+        UnfinishedStream stream = toUnfinishedStream();
+        return stream.firstIp().getHostAddress() + ":" + stream.firstPort() + " -> " +
+                stream.secondIp().getHostAddress() + ":" + stream.secondPort() + " (" + protocol + ")";
+    }
+
+}
@@ -0,0 +1,98 @@
+package ru.serega6531.packmate.pcap;
+
+import ru.serega6531.packmate.properties.PackmateProperties;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограничение памяти, которую занимает полезная нагрузка незавершенных стримов, общее для всех шардов.
+ * Стрим, превысивший свой лимит, начинает вытеснять полезную нагрузку на диск. Когда превышен общий лимит,
+ * вытесняются только крупные стримы: мелкие остаются в памяти и сохраняются обычным путем, пачками.
+ */
+final class FlowMemoryBudget {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    // при превышении общего лимита вытесняются стримы больше этой доли лимита одного стрима
+    private static final int LARGE_FLOW_FRACTION = 8;
+
+    private final long flowLimit;
+    private final long globalLimit;
+    private final long largeFlowSize;
+    private final Path spillDirectory;
+
+    private final AtomicLong used = new AtomicLong();
+    private final LongAdder spilledFlows = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+
+    /**
+     * @param flowLimit   лимит одного стрима в байтах, 0 - без ограничения
+     * @param globalLimit лимит всех стримов в байтах, 0 - без ограничения
+     */
+    FlowMemoryBudget(long flowLimit, long globalLimit, Path spillDirectory) {
+        this.flowLimit = flowLimit;
+        this.globalLimit = globalLimit;
+        this.largeFlowSize = flowLimit > 0 ? flowLimit / LARGE_FLOW_FRACTION : MEGABYTE;
+        this.spillDirectory = spillDirectory;
+    }
+
+    static FlowMemoryBudget of(PackmateProperties.ProcessingProperties processing) {
+        String directory = processing.spillDirectory();
+        if (directory == null || directory.isBlank()) {
+            directory = System.getProperty("java.io.tmpdir");
+        }
+
+        return new FlowMemoryBudget(
+                Math.max(0, processing.flowMemoryLimit()) * MEGABYTE,
+                Math.max(0, processing.memoryLimit()) * MEGABYTE,
+                Path.of(directory));
+    }
+
+    /**
+     * Сколько байт вытесненного стрима можно вернуть в память при его обработке:
+     * лимит одного стрима, а если его нет - общий лимит
+     */
+    long getRestoreLimit() {
+        if (flowLimit > 0) {
+            return flowLimit;
+        }
+        return globalLimit > 0 ? globalLimit : Long.MAX_VALUE;
+    }
+
+    Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param flowBytes байт полезной нагрузки стрима в памяти
+     * @param length    длина нового пакета
+     */
+    boolean shouldSpill(long flowBytes, int length) {
+        return (flowLimit > 0 && flowBytes + length > flowLimit)
+                || (globalLimit > 0 && used.get() + length > globalLimit && flowBytes + length > largeFlowSize);
+    }
+
+    void allocate(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    void free(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    void flowSpilled() {
+        spilledFlows.increment();
+    }
+
+    void bytesSpilled(long bytes) {
+        spilledBytes.add(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("streams in memory %d MB, spilled streams %d, spilled %d MB",
+                used.get() / MEGABYTE, spilledFlows.sum(), spilledBytes.sum() / MEGABYTE);
+    }
+}
@@ -0,0 +1,73 @@
+package ru.serega6531.packmate.pcap;
+
+/**
+ * Потоки в порядке последней активности: в начале - дольше всех не получавшие пакетов.
+ * Список интрузивный, ссылки хранятся в самих потоках, поэтому перемещение не требует аллокаций,
+ * а поиск потоков с истекшим таймаутом просматривает только их.
+ * Не потокобезопасен: используется только из потока шарда.
+ */
+final class FlowQueue {
+
+    private Flow head;
+    private Flow tail;
+    private int size;
+
+    /**
+     * Перемещает поток в конец очереди, добавляя его, если его там еще нет
+     */
+    void touch(Flow flow) {
+        if (flow == tail) {
+            return;
+        }
+
+        if (flow.queued) {
+            unlink(flow);
+        }
+
+        flow.prev = tail;
+        flow.next = null;
+        if (tail != null) {
+            tail.next = flow;
+        } else {
+            head = flow;
+        }
+        tail = flow;
+
+        flow.queued = true;
+        size++;
+    }
+
+    void remove(Flow flow) {
+        if (flow.queued) {
+            unlink(flow);
+        }
+    }
+
+    Flow peekOldest() {
+        return head;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Flow flow) {
+        if (flow.prev != null) {
+            flow.prev.next = flow.next;
+        } else {
+            head = flow.next;
+        }
+
+        if (flow.next != null) {
+            flow.next.prev = flow.prev;
+        } else {
+            tail = flow.prev;
+        }
+
+        flow.prev = null;
+        flow.next = null;
+        flow.queued = false;
+        size--;
+    }
+
+}
@@ -0,0 +1,206 @@
+package ru.serega6531.packmate.pcap;
+
+import ru.serega6531.packmate.model.enums.Protocol;
+
+/**
+ * Хеш-таблица потоков с открытой адресацией и линейным пробированием.
+ * Ключи хранятся в примитивных массивах, поэтому таблица не держит объектов ключей и записей,
+ * а поиск не требует распаковки адресов. При удалении следующие записи сдвигаются назад, без "надгробий".
+ * Не потокобезопасна: используется только из потока шарда.
+ */
+final class FlowTable {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private long[] aHi;
+    private long[] aLo;
+    private long[] bHi;
+    private long[] bLo;
+    private int[] ports;
+    private byte[] protocols;  // 0 - пустая ячейка, иначе ordinal протокола + 1
+    private Flow[] flows;
+
+    private int mask;
+    private int shift;
+    private int size;
+
+    FlowTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    Flow get(FlowKey key) {
+        int slot = find(key);
+        return slot >= 0 ? flows[slot] : null;
+    }
+
+    /**
+     * Возвращает существующий поток или создает новый
+     */
+    Flow getOrCreate(FlowKey key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return flows[slot];
+        }
+
+        if ((size + 1) * 4 > flows.length * 3) {  // заполнение больше 3/4
+            resize(flows.length * 2);
+            slot = find(key);
+        }
+
+        slot = ~slot;
+        aHi[slot] = key.aHi;
+        aLo[slot] = key.aLo;
+        bHi[slot] = key.bHi;
+        bLo[slot] = key.bLo;
+        ports[slot] = key.ports;
+        protocols[slot] = protocolCode(key.protocol);
+
+        Flow flow = new Flow(key);
+        flows[slot] = flow;
+        size++;
+        return flow;
+    }
+
+    void remove(Flow flow) {
+        int slot = find(flow.key);
+        if (slot < 0) {
+            return;
+        }
+
+        size--;
+        // сдвигаем назад записи, которые из-за удаленной оказались дальше от своей начальной ячейки
+        int free = slot;
+        int current = slot;
+        while (true) {
+            current = (current + 1) & mask;
+            if (protocols[current] == 0) {
+                break;
+            }
+
+            int home = home(current);
+            boolean canMove = free <= current ? (home <= free || home > current) : (home <= free && home > current);
+            if (canMove) {
+                move(current, free);
+                free = current;
+            }
+        }
+
+        protocols[free] = 0;
+        flows[free] = null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return flows.length;
+    }
+
+    /**
+     * Ячейка, с которой начинается поиск ключа при текущей емкости
+     */
+    int homeSlot(FlowKey key) {
+        return slotOf(key.hashCode());
+    }
+
+    /**
+     * @return номер ячейки с ключом или ~номер свободной ячейки, куда его можно вставить
+     */
+    private int find(FlowKey key) {
+        final byte protocol = protocolCode(key.protocol);
+        int slot = slotOf(key.hashCode());
+
+        while (true) {
+            if (protocols[slot] == 0) {
+                return ~slot;
+            }
+
+            if (protocols[slot] == protocol && ports[slot] == key.ports &&
+                    aLo[slot] == key.aLo && bLo[slot] == key.bLo &&
+                    aHi[slot] == key.aHi && bHi[slot] == key.bHi) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int home(int slot) {
+        return slotOf(FlowKey.mix(aHi[slot], aLo[slot], bHi[slot], bLo[slot], ports[slot], protocols[slot] - 1));
+    }
+
+    /**
+     * Берутся старшие биты произведения: младшие биты хеша у всех потоков шарда совпадают,
+     * так как по ним выбирается шард
+     */
+    private int slotOf(int hash) {
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    private void move(int from, int to) {
+        aHi[to] = aHi[from];
+        aLo[to] = aLo[from];
+        bHi[to] = bHi[from];
+        bLo[to] = bLo[from];
+        ports[to] = ports[from];
+        protocols[to] = protocols[from];
+        flows[to] = flows[from];
+    }
+
+    private void resize(int capacity) {
+        Flow[] oldFlows = flows;
+        allocate(capacity);
+        size = 0;
+
+        for (Flow flow : oldFlows) {
+            if (flow != null) {
+                int slot = ~find(flow.key);
+                aHi[slot] = flow.key.aHi;
+                aLo[slot] = flow.key.aLo;
+                bHi[slot] = flow.key.bHi;
+                bLo[slot] = flow.key.bLo;
+                ports[slot] = flow.key.ports;
+                protocols[slot] = protocolCode(flow.key.protocol);
+                flows[slot] = flow;
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        aHi = new long[capacity];
+        aLo = new long[capacity];
+        bHi = new long[capacity];
+        bLo = new long[capacity];
+        ports = new int[capacity];
+        protocols = new byte[capacity];
+        flows = new Flow[capacity];
+        mask = capacity - 1;
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    /**
+     * Уменьшает таблицу, если после всплеска соединений она почти пуста
+     */
+    void shrinkIfSparse() {
+        int capacity = flows.length;
+        while (capacity > MIN_CAPACITY && size * 8 < capacity) {
+            capacity /= 2;
+        }
+
+        if (capacity != flows.length) {
+            resize(capacity);
+        }
+    }
+
+    private static byte protocolCode(Protocol protocol) {
+        return (byte) (protocol.ordinal() + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "FlowTable(size=" + size + ", capacity=" + flows.length + ")";
+    }
+
+}
@@ -2,75 +2,267 @@ package ru.serega6531.packmate.pcap;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.pcap4j.core.BpfProgram;
+import org.pcap4j.core.PacketListener;
+import org.pcap4j.core.PcapHandle;
 import org.pcap4j.core.PcapNativeException;
 import org.pcap4j.core.PcapNetworkInterface;
+import org.pcap4j.core.PcapStat;
 import org.pcap4j.core.Pcaps;
+import org.pcap4j.core.RawPacketListener;
+import org.pcap4j.packet.Packet;
 import ru.serega6531.packmate.exception.PcapInterfaceNotFoundException;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
 import ru.serega6531.packmate.service.ServicesService;
-import ru.serega6531.packmate.service.StreamService;
+import ru.serega6531.packmate.service.StreamPipeline;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
 
+/**
+ * Перехват трафика с одного или нескольких интерфейсов.
+ * У каждого интерфейса свой поток чтения, а пакеты со всех интерфейсов попадают в общие шарды.
+ */
 @Slf4j
 public class LivePcapWorker extends AbstractPcapWorker {
 
-    private final PcapNetworkInterface device;
+    private final List<PcapNetworkInterface> devices;
+    private final boolean rawDecoder;
+    private final PackmateProperties.CaptureProperties capture;
+
+    private final List<Capture> captures = new CopyOnWriteArrayList<>();
 
     public LivePcapWorker(ServicesService servicesService,
-                          StreamService streamService,
-                          InetAddress localIp,
-                          String interfaceName) throws PcapNativeException, UnknownHostException {
-        super(servicesService, streamService, localIp);
-        device = Pcaps.getDevByName(interfaceName);
-
-        if (device == null) {
-            List<String> existingInterfaces = Pcaps.findAllDevs().stream().map(PcapNetworkInterface::getName).toList();
-            throw new PcapInterfaceNotFoundException(interfaceName, existingInterfaces);
+                          StreamPipeline pipeline,
+                          InFlightPatternMatcher inFlightMatcher,
+                          IpNetworkSet localNetworks,
+                          List<String> interfaceNames,
+                          PackmateProperties.ProcessingProperties processing,
+                          PackmateProperties.CaptureProperties capture) throws PcapNativeException {
+        super(servicesService, pipeline, inFlightMatcher, localNetworks, Math.max(1, interfaceNames.size()));
+        this.rawDecoder = processing.rawDecoder();
+        this.capture = capture;
+
+        devices = new ArrayList<>(interfaceNames.size());
+        for (String interfaceName : interfaceNames) {
+            PcapNetworkInterface device = Pcaps.getDevByName(interfaceName);
+
+            if (device == null) {
+                List<String> existingInterfaces = Pcaps.findAllDevs().stream().map(PcapNetworkInterface::getName).toList();
+                throw new PcapInterfaceNotFoundException(interfaceName, existingInterfaces);
+            }
+
+            devices.add(device);
         }
 
-        BasicThreadFactory factory = new BasicThreadFactory.Builder()
-                .namingPattern("pcap-processor").build();
-        processorExecutorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory);
+        initShards(processing);
     }
 
     public void start() throws PcapNativeException {
-        log.info("Using interface " + device.getName());
-        pcap = device.openLive(65536, PcapNetworkInterface.PromiscuousMode.PROMISCUOUS, 100);
+        for (PcapNetworkInterface device : devices) {
+            log.info("Using interface " + device.getName());
+            captures.add(new Capture(device, openHandle(device)));
+        }
 
         applyFilter();
 
-        loopExecutorService.execute(() -> {
-            try {
-                log.info("Intercept started");
-                pcap.loop(-1, this);
-            } catch (InterruptedException ignored) {
-                Thread.currentThread().interrupt();
-                // выходим
-            } catch (Exception e) {
-                log.error("Error while capturing packet", e);
-                stop();
+        for (Capture capture : captures) {
+            loopExecutorService.execute(capture::loop);
+        }
+    }
+
+    private PcapHandle openHandle(PcapNetworkInterface device) throws PcapNativeException {
+        PcapHandle.Builder builder = new PcapHandle.Builder(device.getName())
+                .promiscuousMode(PcapNetworkInterface.PromiscuousMode.PROMISCUOUS)
+                .snaplen(capture.snaplen() > 0 ? capture.snaplen() : 65536)
+                .timeoutMillis(capture.timeout() > 0 ? capture.timeout() : 100)
+                .immediateMode(capture.immediateMode());
+
+        if (capture.bufferSize() > 0) {
+            if (capture.bufferSize() * 1024L * 1024 > Integer.MAX_VALUE) {
+                log.warn("Capture buffer size {} MB is too large, using {} MB",
+                        capture.bufferSize(), Integer.MAX_VALUE / 1024 / 1024);
             }
-        });
+            builder.bufferSize(bufferSizeBytes());
+        }
+
+        PcapHandle handle = builder.build();
+        selfTest(device, handle);
+        return handle;
+    }
+
+    /**
+     * Размер буфера в байтах. libpcap принимает int, поэтому слишком большой размер ограничивается
+     */
+    private int bufferSizeBytes() {
+        return (int) Math.min(capture.bufferSize() * 1024L * 1024, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Выводит параметры интерфейса. Snaplen, тип канала и точность меток времени читаются из открытого интерфейса,
+     * а таймаут и immediate mode libpcap прочитать не дает, поэтому для них выводятся запрошенные значения.
+     * Размер буфера libpcap тоже узнать нельзя, поэтому для него выводится, на сколько времени хватит запрошенного буфера.
+     */
+    private void selfTest(PcapNetworkInterface device, PcapHandle handle) {
+        final int requestedSnaplen = capture.snaplen() > 0 ? capture.snaplen() : 65536;
+
+        try {
+            final int snaplen = handle.getSnapshot();
+            log.info("Capture on {}: link type {}, snaplen {}, timestamp precision {}, requested timeout {} ms, requested immediate mode {}",
+                    device.getName(), handle.getDlt(), snaplen, handle.getTimestampPrecision(),
+                    capture.timeout() > 0 ? capture.timeout() : 100, capture.immediateMode());
+
+            if (snaplen < requestedSnaplen) {
+                log.warn("Capture on {}: snaplen {} is less than requested {}, large packets will be truncated",
+                        device.getName(), snaplen, requestedSnaplen);
+            }
+
+            if (capture.bufferSize() > 0) {
+                final int bufferBytes = bufferSizeBytes();
+                final long bufferBits = bufferBytes * 8L;
+                log.info("Capture on {}: requested {} MB buffer holds {} ms of traffic at 1 Gbit/s, {} ms at 10 Gbit/s",
+                        device.getName(), bufferBytes / 1024 / 1024, bufferBits / 1_000_000, bufferBits / 10_000_000);
+            } else {
+                log.info("Capture on {}: default libpcap buffer size", device.getName());
+            }
+
+            handle.getStats();  // проверяем, что статистика потерь доступна
+        } catch (Exception e) {
+            log.warn("Capture self-test on {} failed: {}", device.getName(), e.getMessage());
+        }
     }
 
     @SneakyThrows
     public void stop() {
-        if (pcap != null && pcap.isOpen()) {
-            pcap.breakLoop();
-            pcap.close();
+        for (Capture capture : captures) {
+            capture.close();
         }
 
         log.info("Intercept stopped");
     }
 
+    @Override
+    @SneakyThrows
+    protected void applyFilter() {
+        if (filter == null) {
+            return;
+        }
+
+        for (Capture capture : captures) {
+            if (capture.handle.isOpen()) {
+                capture.handle.setFilter(filter, BpfProgram.BpfCompileMode.OPTIMIZE);
+            }
+        }
+    }
+
     @Override
     public String getExecutorState() {
-        return processorExecutorService.toString();
+        final String failed = captures.stream()
+                .filter(capture -> capture.failure != null)
+                .map(capture -> capture.device.getName() + " (" + capture.failure + ")")
+                .collect(Collectors.joining(", "));
+
+        return failed.isEmpty() ? getShardsState() : getShardsState() + ", stopped by error: " + failed;
+    }
+
+    @Override
+    public List<CaptureStatsDto> getCaptureStats() {
+        List<CaptureStatsDto> stats = new ArrayList<>(captures.size());
+
+        for (Capture capture : captures) {
+            if (!capture.handle.isOpen()) {
+                continue;
+            }
+
+            try {
+                PcapStat stat = capture.handle.getStats();
+                stats.add(new CaptureStatsDto(capture.device.getName(), stat.getNumPacketsReceived(),
+                        stat.getNumPacketsDropped(), stat.getNumPacketsDroppedByIf()));
+            } catch (Exception e) {
+                log.warn("Failed to get capture stats of {}: {}", capture.device.getName(), e.getMessage());
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Перехват с одного интерфейса. Все методы, кроме close, выполняются в его потоке чтения.
+     */
+    private class Capture {
+
+        private final PcapNetworkInterface device;
+        private final PcapHandle handle;
+        private final int linkType;
+
+        private final DecodedPacket packet = new DecodedPacket();
+
+        // причина остановки перехвата из-за ошибки
+        private volatile String failure = null;
+
+        Capture(PcapNetworkInterface device, PcapHandle handle) {
+            this.device = device;
+            this.handle = handle;
+            this.linkType = handle.getDlt().value();
+        }
+
+        void loop() {
+            final boolean useRawDecoder = rawDecoder && PacketDecoder.isSupported(linkType);
+            if (rawDecoder && !useRawDecoder) {
+                log.warn("Link type {} of {} is not supported by the raw decoder, falling back to pcap4j",
+                        handle.getDlt(), device.getName());
+            }
+
+            try {
+                log.info("Intercept on {} started ({} decoder)", device.getName(), useRawDecoder ? "raw" : "pcap4j");
+                if (useRawDecoder) {
+                    handle.loop(-1, (RawPacketListener) this::gotRawPacket);
+                } else {
+                    handle.loop(-1, (PacketListener) this::gotPacket);
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                // выходим
+            } catch (Exception e) {
+                // остальные интерфейсы продолжают работать
+                log.error("Error while capturing packet on {}, capture on it is stopped", device.getName(), e);
+                failure = e.toString();
+                close();
+            }
+        }
+
+        private void gotPacket(Packet rawPacket) {
+            packet.reset(handle.getTimestamp().getTime());
+
+            if (decodePcap4jPacket(rawPacket, packet)) {
+                gotDecodedPacket(packet);
+            }
+        }
+
+        /**
+         * Разбирает заголовки кадра по фиксированным смещениям, не создавая объекты pcap4j для каждого уровня
+         */
+        private void gotRawPacket(byte[] frame) {
+            packet.reset(handle.getTimestamp().getTime());
+
+            if (PacketDecoder.decode(linkType, ByteBuffer.wrap(frame), 0, frame.length, packet)) {
+                gotDecodedPacket(packet);
+            }
+        }
+
+        @SneakyThrows
+        void close() {
+            if (handle.isOpen()) {
+                handle.breakLoop();
+                handle.close();
+            }
+        }
+
     }
 }
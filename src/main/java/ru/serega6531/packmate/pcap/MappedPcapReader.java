@@ -0,0 +1,320 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Чтение файлов pcap и pcapng через отображение в память, без JNA и без объектов pcap4j.
+ * Файл отображается окнами, так что поддерживаются файлы больше 2 ГБ.
+ * Пакеты разбираются на месте с помощью PacketDecoder, полезная нагрузка указывает в отображенный буфер
+ * и действительна до следующего вызова next.
+ */
+@Slf4j
+final class MappedPcapReader implements Closeable {
+
+    private static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+    private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+
+    private static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+    private static final int PCAPNG_OBSOLETE_PACKET = 2;
+    private static final int PCAPNG_SIMPLE_PACKET = 3;
+    private static final int PCAPNG_ENHANCED_PACKET = 6;
+    private static final int PCAPNG_OPTION_END = 0;
+    private static final int PCAPNG_OPTION_TSRESOL = 9;
+
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final boolean pcapng;
+
+    private ByteOrder order;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+
+    private long position;
+
+    // для pcap
+    private int linkType;
+    private boolean nanos;
+
+    // для pcapng: интерфейсы текущей секции
+    private final List<PcapNgInterface> interfaces = new ArrayList<>();
+    private long lastTimestamp;
+
+    private long skippedPackets = 0;
+
+    private MappedPcapReader(FileChannel channel, boolean pcapng, ByteOrder order) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.pcapng = pcapng;
+        this.order = order;
+    }
+
+    /**
+     * @return читатель или null, если формат файла или тип канального уровня не поддерживается
+     */
+    static MappedPcapReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            MappedPcapReader reader = detect(channel);
+            if (reader == null) {
+                channel.close();
+            }
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static MappedPcapReader detect(FileChannel channel) throws IOException {
+        if (channel.size() < 24) {
+            return null;
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 24);
+        final int magic = header.order(ByteOrder.BIG_ENDIAN).getInt(0);
+        final int swappedMagic = Integer.reverseBytes(magic);
+
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS ||
+                swappedMagic == PCAP_MAGIC_MICROS || swappedMagic == PCAP_MAGIC_NANOS) {
+            boolean bigEndian = magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS;
+            MappedPcapReader reader = new MappedPcapReader(channel, false,
+                    bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            reader.nanos = (bigEndian ? magic : swappedMagic) == PCAP_MAGIC_NANOS;
+            reader.linkType = reader.i32(20) & 0xFFFF;
+            reader.position = 24;
+
+            if (!PacketDecoder.isSupported(reader.linkType)) {
+                log.info("Link type {} is not supported by the mapped reader", reader.linkType);
+                return null;
+            }
+
+            return reader;
+        }
+
+        if (magic == PCAPNG_SECTION_HEADER) {
+            final int byteOrderMagic = header.getInt(8);
+            final ByteOrder order = byteOrderMagic == PCAPNG_BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            return new MappedPcapReader(channel, true, order);
+        }
+
+        return null;
+    }
+
+    /**
+     * Читает следующий пакет
+     * @return false, если файл закончился
+     */
+    boolean next(DecodedPacket packet) throws IOException {
+        return pcapng ? nextPcapNg(packet) : nextPcap(packet);
+    }
+
+    long getSkippedPackets() {
+        return skippedPackets;
+    }
+
+    private boolean nextPcap(DecodedPacket packet) throws IOException {
+        if (position + 16 > fileSize) {
+            return false;
+        }
+
+        final long seconds = i32(position) & 0xFFFFFFFFL;
+        final long fraction = i32(position + 4) & 0xFFFFFFFFL;
+        final int capturedLength = i32(position + 8);
+
+        if (capturedLength < 0 || position + 16 + capturedLength > fileSize) {
+            log.warn("Truncated pcap record at offset {}", position);
+            return false;
+        }
+
+        packet.reset(seconds * 1000 + (nanos ? fraction / 1_000_000 : fraction / 1000));
+        decodeFrame(linkType, position + 16, capturedLength, packet);
+
+        position += 16 + capturedLength;
+        return true;
+    }
+
+    private boolean nextPcapNg(DecodedPacket packet) throws IOException {
+        while (position + 12 <= fileSize) {
+            final long blockStart = position;
+            int type = i32(blockStart);
+
+            if (type == PCAPNG_SECTION_HEADER) {
+                // в новой секции может смениться порядок байт, а номера интерфейсов начинаются заново
+                ensure(blockStart, 12);
+                order = window.order(ByteOrder.BIG_ENDIAN).getInt((int) (blockStart + 8 - windowStart)) == PCAPNG_BYTE_ORDER_MAGIC ?
+                        ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                window.order(order);
+                interfaces.clear();
+            }
+
+            final int blockLength = i32(blockStart + 4);
+            if (blockLength < 12 || blockStart + blockLength > fileSize) {
+                log.warn("Truncated pcapng block at offset {}", blockStart);
+                return false;
+            }
+
+            position = blockStart + blockLength;
+
+            switch (type) {
+                case PCAPNG_INTERFACE_DESCRIPTION -> readInterface(blockStart, blockLength);
+                case PCAPNG_ENHANCED_PACKET -> {
+                    PcapNgInterface iface = getInterface(i32(blockStart + 8));
+                    long timestamp = ((i32(blockStart + 12) & 0xFFFFFFFFL) << 32) | (i32(blockStart + 16) & 0xFFFFFFFFL);
+                    int capturedLength = i32(blockStart + 20);
+                    return readPcapNgPacket(iface, iface == null ? 0 : iface.toMillis(timestamp),
+                            blockStart + 28, capturedLength, blockLength - 32, packet);
+                }
+                case PCAPNG_OBSOLETE_PACKET -> {
+                    PcapNgInterface iface = getInterface(i16(blockStart + 8));
+                    long timestamp = ((i32(blockStart + 12) & 0xFFFFFFFFL) << 32) | (i32(blockStart + 16) & 0xFFFFFFFFL);
+                    int capturedLength = i32(blockStart + 20);
+                    return readPcapNgPacket(iface, iface == null ? 0 : iface.toMillis(timestamp),
+                            blockStart + 28, capturedLength, blockLength - 32, packet);
+                }
+                case PCAPNG_SIMPLE_PACKET -> {
+                    // у простого пакета нет метки времени, используем время предыдущего
+                    PcapNgInterface iface = getInterface(0);
+                    int originalLength = i32(blockStart + 8);
+                    return readPcapNgPacket(iface, lastTimestamp, blockStart + 12, originalLength, blockLength - 16, packet);
+                }
+                default -> {
+                    // остальные блоки (статистика, имена и т.д.) не нужны
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private boolean readPcapNgPacket(PcapNgInterface iface, long timestamp, long dataStart,
+                                     int capturedLength, int maxLength, DecodedPacket packet) throws IOException {
+        lastTimestamp = timestamp;
+        packet.reset(timestamp);
+
+        if (iface == null || !PacketDecoder.isSupported(iface.linkType)) {
+            skippedPackets++;
+            return true;
+        }
+
+        decodeFrame(iface.linkType, dataStart, Math.max(0, Math.min(capturedLength, maxLength)), packet);
+        return true;
+    }
+
+    private void readInterface(long blockStart, int blockLength) throws IOException {
+        final int ifaceLinkType = i16(blockStart + 8);  // следующие 2 байта зарезервированы
+        int resolution = 6;
+        boolean binaryResolution = false;
+
+        long optionOffset = blockStart + 16;
+        final long optionsEnd = blockStart + blockLength - 4;
+        while (optionOffset + 4 <= optionsEnd) {
+            int code = i16(optionOffset);
+            int length = i16(optionOffset + 2);
+
+            if (code == PCAPNG_OPTION_END) {
+                break;
+            }
+
+            if (code == PCAPNG_OPTION_TSRESOL && length >= 1) {
+                ensure(optionOffset + 4, 1);
+                int value = window.get((int) (optionOffset + 4 - windowStart)) & 0xFF;
+                binaryResolution = (value & 0x80) != 0;
+                resolution = value & 0x7F;
+            }
+
+            optionOffset += 4 + ((length + 3) & ~3);
+        }
+
+        if (!PacketDecoder.isSupported(ifaceLinkType)) {
+            log.warn("Interface {} has unsupported link type {}, its packets will be skipped",
+                    interfaces.size(), ifaceLinkType);
+        }
+
+        interfaces.add(new PcapNgInterface(ifaceLinkType, resolution, binaryResolution));
+    }
+
+    private PcapNgInterface getInterface(int id) {
+        return id >= 0 && id < interfaces.size() ? interfaces.get(id) : null;
+    }
+
+    private void decodeFrame(int frameLinkType, long frameStart, int capturedLength, DecodedPacket packet) throws IOException {
+        ensure(frameStart, capturedLength);
+        if (!PacketDecoder.decode(frameLinkType, window, (int) (frameStart - windowStart), capturedLength, packet)) {
+            packet.decoded = false;
+        }
+    }
+
+    private int i32(long offset) throws IOException {
+        ensure(offset, 4);
+        return window.getInt((int) (offset - windowStart));
+    }
+
+    private int i16(long offset) throws IOException {
+        ensure(offset, 2);
+        return window.getShort((int) (offset - windowStart)) & 0xFFFF;
+    }
+
+    /**
+     * Отображает окно, содержащее диапазон [offset, offset + length)
+     */
+    private void ensure(long offset, int length) throws IOException {
+        if (window != null && offset >= windowStart && offset + length <= windowEnd) {
+            return;
+        }
+
+        long size = Math.min(Math.max(WINDOW_SIZE, length), fileSize - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        window.order(order);
+        windowStart = offset;
+        windowEnd = offset + size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private record PcapNgInterface(int linkType, int resolution, boolean binaryResolution) {
+
+        long toMillis(long timestamp) {
+            if (binaryResolution) {
+                long whole = timestamp >>> resolution;
+                long fraction = timestamp & ((1L << resolution) - 1);
+                return whole * 1000 + ((fraction * 1000) >>> resolution);
+            }
+
+            if (resolution >= 3) {
+                return timestamp / pow10(resolution - 3);
+            } else {
+                return timestamp * pow10(3 - resolution);
+            }
+        }
+
+        private static long pow10(int power) {
+            long result = 1;
+            for (int i = 0; i < power; i++) {
+                result *= 10;
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -1,6 +1,9 @@
 package ru.serega6531.packmate.pcap;
 
 import ru.serega6531.packmate.model.enums.Protocol;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
+
+import java.util.List;
 
 public class NoOpPcapWorker implements PcapWorker {
     @Override
@@ -16,7 +19,7 @@ public class NoOpPcapWorker implements PcapWorker {
     }
 
     @Override
-    public int closeTimeoutStreams(Protocol protocol, long timeoutMillis) {
+    public int closeTimeoutStreams(Protocol protocol, long timeoutMillis, long now) {
         return 0;
     }
 
@@ -28,4 +31,9 @@ public class NoOpPcapWorker implements PcapWorker {
     public String getExecutorState() {
         return "none";
     }
+
+    @Override
+    public List<CaptureStatsDto> getCaptureStats() {
+        return List.of();
+    }
 }
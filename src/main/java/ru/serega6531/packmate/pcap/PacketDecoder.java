@@ -0,0 +1,222 @@
+package ru.serega6531.packmate.pcap;
+
+import ru.serega6531.packmate.model.enums.Protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Разбор заголовков канального, сетевого и транспортного уровней по фиксированным смещениям.
+ * Поддерживаются Ethernet (в том числе с VLAN), Linux cooked capture, BSD loopback и кадры без канального уровня,
+ * IPv4 и IPv6 с заголовками расширения, tcp и udp. Для остальных пакетов decode возвращает false.
+ */
+final class PacketDecoder {
+
+    // LINKTYPE_* из формата pcap и соответствующие DLT_* из libpcap
+    static final int LINKTYPE_NULL = 0;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int DLT_RAW_OPENBSD = 12;
+    static final int DLT_RAW = 14;
+    static final int LINKTYPE_RAW = 101;
+    static final int LINKTYPE_LOOP = 108;
+    static final int LINKTYPE_LINUX_SLL = 113;
+    static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+
+    private static final int IP_PROTO_TCP = 6;
+    private static final int IP_PROTO_UDP = 17;
+
+    private static final int IPV6_HOP_BY_HOP = 0;
+    private static final int IPV6_ROUTING = 43;
+    private static final int IPV6_FRAGMENT = 44;
+    private static final int IPV6_DEST_OPTIONS = 60;
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF_0000_0000L;
+
+    private PacketDecoder() {
+    }
+
+    static boolean isSupported(int linkType) {
+        return switch (linkType) {
+            case LINKTYPE_NULL, LINKTYPE_ETHERNET, DLT_RAW_OPENBSD, DLT_RAW, LINKTYPE_RAW, LINKTYPE_LOOP,
+                    LINKTYPE_LINUX_SLL, LINKTYPE_LINUX_SLL2 -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @param offset смещение кадра в буфере
+     * @param length захваченная длина кадра
+     * @return true, если это tcp или udp пакет и его поля записаны в packet
+     */
+    static boolean decode(int linkType, ByteBuffer buf, int offset, int length, DecodedPacket packet) {
+        final int end = offset + length;
+        final int ipOffset = switch (linkType) {
+            case LINKTYPE_ETHERNET -> ethernetPayload(buf, offset, end);
+            case LINKTYPE_LINUX_SLL -> offset + 16;
+            case LINKTYPE_LINUX_SLL2 -> offset + 20;
+            case LINKTYPE_NULL, LINKTYPE_LOOP -> offset + 4;
+            case DLT_RAW_OPENBSD, DLT_RAW, LINKTYPE_RAW -> offset;
+            default -> -1;
+        };
+
+        if (ipOffset < 0 || ipOffset >= end) {
+            return false;
+        }
+
+        // тип протокола в заголовках sll и loopback не проверяем: версия есть в самом IP заголовке
+        final int version = (buf.get(ipOffset) & 0xFF) >>> 4;
+        if (version == 4) {
+            return decodeIpV4(buf, ipOffset, end, packet);
+        } else if (version == 6) {
+            return decodeIpV6(buf, ipOffset, end, packet);
+        }
+
+        return false;
+    }
+
+    private static int ethernetPayload(ByteBuffer buf, int offset, int end) {
+        int typeOffset = offset + 12;
+
+        for (int tags = 0; tags <= 2; tags++) {
+            if (typeOffset + 2 > end) {
+                return -1;
+            }
+
+            int etherType = u16(buf, typeOffset);
+            if (etherType == ETHERTYPE_IPV4 || etherType == ETHERTYPE_IPV6) {
+                return typeOffset + 2;
+            } else if (etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) {
+                typeOffset += 4;
+            } else {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean decodeIpV4(ByteBuffer buf, int offset, int end, DecodedPacket packet) {
+        if (offset + 20 > end) {
+            return false;
+        }
+
+        final int headerLength = (buf.get(offset) & 0x0F) * 4;
+        final int totalLength = u16(buf, offset + 2);
+        final int fragmentOffset = u16(buf, offset + 6) & 0x1FFF;
+
+        if (headerLength < 20 || fragmentOffset != 0) {  // продолжения фрагментов не содержат заголовка tcp/udp
+            return false;
+        }
+
+        packet.ttl = buf.get(offset + 8) & 0xFF;
+        packet.sourceHi = 0;
+        packet.sourceLo = IPV4_MAPPED_PREFIX | u32(buf, offset + 12);
+        packet.destHi = 0;
+        packet.destLo = IPV4_MAPPED_PREFIX | u32(buf, offset + 16);
+
+        // длина из заголовка отсекает выравнивание кадра ethernet
+        final int ipEnd = totalLength >= headerLength ? Math.min(end, offset + totalLength) : end;
+        return decodeTransport(buf, buf.get(offset + 9) & 0xFF, offset + headerLength, ipEnd, packet);
+    }
+
+    private static boolean decodeIpV6(ByteBuffer buf, int offset, int end, DecodedPacket packet) {
+        if (offset + 40 > end) {
+            return false;
+        }
+
+        final int payloadLength = u16(buf, offset + 4);
+        int nextHeader = buf.get(offset + 6) & 0xFF;
+        packet.ttl = buf.get(offset + 7) & 0xFF;
+        packet.sourceHi = u64(buf, offset + 8);
+        packet.sourceLo = u64(buf, offset + 16);
+        packet.destHi = u64(buf, offset + 24);
+        packet.destLo = u64(buf, offset + 32);
+
+        final int ipEnd = payloadLength > 0 ? Math.min(end, offset + 40 + payloadLength) : end;
+        int headerOffset = offset + 40;
+
+        while (nextHeader == IPV6_HOP_BY_HOP || nextHeader == IPV6_ROUTING ||
+                nextHeader == IPV6_DEST_OPTIONS || nextHeader == IPV6_FRAGMENT) {
+            if (headerOffset + 8 > ipEnd) {
+                return false;
+            }
+
+            if (nextHeader == IPV6_FRAGMENT) {
+                if ((u16(buf, headerOffset + 2) & 0xFFF8) != 0) {
+                    return false;
+                }
+                nextHeader = buf.get(headerOffset) & 0xFF;
+                headerOffset += 8;
+            } else {
+                final int length = ((buf.get(headerOffset + 1) & 0xFF) + 1) * 8;
+                nextHeader = buf.get(headerOffset) & 0xFF;
+                headerOffset += length;
+            }
+        }
+
+        return decodeTransport(buf, nextHeader, headerOffset, ipEnd, packet);
+    }
+
+    private static boolean decodeTransport(ByteBuffer buf, int protocol, int offset, int end, DecodedPacket packet) {
+        if (protocol == IP_PROTO_TCP) {
+            if (offset + 20 > end) {
+                return false;
+            }
+
+            final int headerLength = ((buf.get(offset + 12) & 0xFF) >>> 4) * 4;
+            if (headerLength < 20 || offset + headerLength > end) {
+                return false;
+            }
+
+            final int flags = buf.get(offset + 13) & 0xFF;
+            packet.protocol = Protocol.TCP;
+            packet.sourcePort = u16(buf, offset);
+            packet.destPort = u16(buf, offset + 2);
+            packet.sequence = u32(buf, offset + 4);
+            packet.fin = (flags & 0x01) != 0;
+            packet.syn = (flags & 0x02) != 0;
+            packet.rst = (flags & 0x04) != 0;
+            packet.ack = (flags & 0x10) != 0;
+            setPayload(buf, offset + headerLength, end, packet);
+            return true;
+        } else if (protocol == IP_PROTO_UDP) {
+            if (offset + 8 > end) {
+                return false;
+            }
+
+            final int udpLength = u16(buf, offset + 4);
+            packet.protocol = Protocol.UDP;
+            packet.sourcePort = u16(buf, offset);
+            packet.destPort = u16(buf, offset + 2);
+            setPayload(buf, offset + 8, udpLength >= 8 ? Math.min(end, offset + udpLength) : end, packet);
+            return true;
+        }
+
+        return false;
+    }
+
+    private static void setPayload(ByteBuffer buf, int offset, int end, DecodedPacket packet) {
+        packet.buffer = buf;
+        packet.payloadOffset = offset;
+        packet.payloadLength = Math.max(0, end - offset);
+        packet.decoded = true;
+    }
+
+    private static int u16(ByteBuffer buf, int offset) {
+        return ((buf.get(offset) & 0xFF) << 8) | (buf.get(offset + 1) & 0xFF);
+    }
+
+    private static long u32(ByteBuffer buf, int offset) {
+        return ((long) u16(buf, offset) << 16) | u16(buf, offset + 2);
+    }
+
+    // порядок байт буфера не используется: в файлах pcap он может отличаться от сетевого
+    private static long u64(ByteBuffer buf, int offset) {
+        return (u32(buf, offset) << 32) | u32(buf, offset + 4);
+    }
+
+}
@@ -0,0 +1,100 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Слияние нескольких файлов в порядке меток времени: из всех файлов берется пакет с наименьшей меткой.
+ * Файлы упорядочены по метке первого пакета и подключаются к слиянию, только когда до нее дошло время,
+ * поэтому при ротации дампов одновременно читается всего несколько файлов.
+ * Поток чтения выделяется файлу только при подключении. Если все потоки заняты, файл читается
+ * в потоке слияния: иначе слияние могло бы ждать файл, для которого нет потока, пока потоки
+ * остальных файлов ждут слияния.
+ * Все методы, кроме close, выполняются в потоке слияния.
+ */
+@Slf4j
+final class PcapFileMerge {
+
+    private final List<PcapFileSource> sources;
+    private final int readerThreads;
+    private final ExecutorService readersExecutor;
+    private final AtomicInteger activeReaders = new AtomicInteger();
+
+    private final PriorityQueue<PcapFileSource> heads = new PriorityQueue<>(
+            Comparator.comparingLong(source -> source.head().timestamp));
+    private int nextSource = 0;
+    private PcapFileSource current = null;
+
+    PcapFileMerge(List<PcapFileSource> sources, int readerThreads) {
+        this.sources = sources.stream()
+                .sorted(Comparator.comparingLong(PcapFileSource::getFirstTimestamp))
+                .toList();
+        this.readerThreads = readerThreads;
+
+        BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                .namingPattern("pcap-file-reader-%d").build();
+        readersExecutor = Executors.newFixedThreadPool(readerThreads, factory);
+    }
+
+    /**
+     * Пакет действителен до следующего вызова
+     * @return следующий по времени пакет или null, если все файлы закончились
+     */
+    DecodedPacket next() throws InterruptedException, IOException {
+        if (current != null && current.next()) {
+            heads.add(current);
+        }
+        current = null;
+
+        while (nextSource < sources.size() &&
+                (heads.isEmpty() || sources.get(nextSource).getFirstTimestamp() <= heads.peek().head().timestamp)) {
+            PcapFileSource source = sources.get(nextSource++);
+            startReading(source);
+            if (source.next()) {
+                heads.add(source);
+            }
+        }
+
+        current = heads.poll();
+        return current != null ? current.head() : null;
+    }
+
+    private void startReading(PcapFileSource source) throws IOException {
+        // счетчик увеличивается только потоком слияния, поэтому проверка и увеличение не разделяются
+        if (activeReaders.get() >= readerThreads) {
+            log.debug("All file readers are busy, reading {} in the merge thread", source.getPath());
+            source.readInline();
+            return;
+        }
+
+        activeReaders.incrementAndGet();
+        readersExecutor.execute(() -> {
+            try {
+                source.read();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.error("Error while reading {}", source.getPath(), e);
+            } finally {
+                activeReaders.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Останавливает чтение всех файлов, может выполняться в любом потоке
+     */
+    void close() {
+        sources.forEach(PcapFileSource::close);
+        readersExecutor.shutdownNow();
+    }
+
+}
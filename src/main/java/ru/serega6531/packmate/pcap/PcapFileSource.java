@@ -0,0 +1,196 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Один файл при чтении нескольких файлов сразу.
+ * Файл читается и разбирается в своем потоке, пакеты передаются потоку слияния пачками через ограниченную очередь,
+ * так что читающий поток не уходит далеко вперед от слияния.
+ * Если свободного потока нет, файл читается прямо в потоке слияния.
+ */
+@Slf4j
+class PcapFileSource {
+
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_BATCHES = 8;
+
+    // пустая пачка означает конец файла
+    private static final List<DecodedPacket> END = List.of();
+
+    private final Path path;
+    private final long firstTimestamp;
+    private final BlockingQueue<List<DecodedPacket>> batches = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private volatile boolean closed = false;
+
+    // используются только потоком слияния
+    private List<DecodedPacket> current = null;
+    private int currentIndex = 0;
+    private DecodedPacket head = null;
+
+    // читатель файла, если файл читается в потоке слияния
+    private MappedPcapReader inlineReader = null;
+    private boolean inline = false;
+
+    private PcapFileSource(Path path, long firstTimestamp) {
+        this.path = path;
+        this.firstTimestamp = firstTimestamp;
+    }
+
+    /**
+     * @return источник или null, если файл пуст или его формат не поддерживается
+     */
+    static PcapFileSource open(Path path) throws IOException {
+        try (MappedPcapReader reader = MappedPcapReader.open(path)) {
+            if (reader == null) {
+                log.warn("File {} is not supported by the mapped reader and will be skipped", path);
+                return null;
+            }
+
+            DecodedPacket packet = new DecodedPacket();
+            if (!reader.next(packet)) {
+                log.info("File {} has no packets", path);
+                return null;
+            }
+
+            return new PcapFileSource(path, packet.timestamp);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Выполняется в потоке чтения
+     */
+    void read() throws IOException, InterruptedException {
+        try (MappedPcapReader reader = MappedPcapReader.open(path)) {
+            DecodedPacket packet = new DecodedPacket();
+            List<DecodedPacket> batch = new ArrayList<>(BATCH_SIZE);
+
+            while (!closed && reader != null && reader.next(packet)) {
+                batch.add(packet.detach());
+
+                if (batch.size() == BATCH_SIZE) {
+                    batches.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                batches.put(batch);
+            }
+
+            if (reader != null && reader.getSkippedPackets() > 0) {
+                log.warn("{}: {} packets from interfaces with unsupported link types were skipped",
+                        path, reader.getSkippedPackets());
+            }
+        } finally {
+            if (!closed) {
+                batches.put(END);
+            }
+        }
+    }
+
+    /**
+     * Выполняется в потоке слияния вместо запуска read в отдельном потоке:
+     * дальше next читает пакеты из файла сам
+     */
+    synchronized void readInline() throws IOException {
+        inline = true;
+        inlineReader = MappedPcapReader.open(path);
+    }
+
+    /**
+     * Останавливает чтение. Поток слияния, ожидающий пакеты этого файла, получает конец файла.
+     */
+    void close() {
+        closed = true;
+        batches.clear();
+        batches.offer(END);
+
+        synchronized (this) {
+            closeInlineReader();
+        }
+    }
+
+    /**
+     * Выполняется в потоке слияния. Ждет, пока читающий поток разберет следующую пачку.
+     * @return false, если файл закончился
+     */
+    boolean next() throws InterruptedException {
+        if (inline) {
+            return nextInline();
+        }
+
+        while (current == null || currentIndex == current.size()) {
+            if (current == END) {
+                head = null;
+                return false;
+            }
+
+            current = batches.take();
+            currentIndex = 0;
+        }
+
+        head = current.get(currentIndex++);
+        return true;
+    }
+
+    private synchronized boolean nextInline() {
+        if (inlineReader != null && !closed) {
+            if (head == null) {
+                head = new DecodedPacket();  // пакет обрабатывается до следующего вызова next, копия не нужна
+            }
+
+            try {
+                if (inlineReader.next(head)) {
+                    return true;
+                }
+
+                if (inlineReader.getSkippedPackets() > 0) {
+                    log.warn("{}: {} packets from interfaces with unsupported link types were skipped",
+                            path, inlineReader.getSkippedPackets());
+                }
+            } catch (IOException e) {
+                log.error("Error while reading {}", path, e);
+            }
+        }
+
+        closeInlineReader();
+        head = null;
+        return false;
+    }
+
+    private void closeInlineReader() {
+        if (inlineReader == null) {
+            return;
+        }
+
+        try {
+            inlineReader.close();
+        } catch (IOException e) {
+            log.warn("Failed to close {}: {}", path, e.getMessage());
+        }
+        inlineReader = null;
+    }
+
+    /**
+     * Пакет, полученный последним вызовом next
+     */
+    DecodedPacket head() {
+        return head;
+    }
+
+}
@@ -2,6 +2,9 @@ package ru.serega6531.packmate.pcap;
 
 import org.pcap4j.core.PcapNativeException;
 import ru.serega6531.packmate.model.enums.Protocol;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
+
+import java.util.List;
 
 public interface PcapWorker {
 
@@ -9,16 +12,22 @@ public interface PcapWorker {
     void stop();
 
     /**
-     * Выполняется в вызывающем потоке
+     * Выполняется в потоках шардов, вызывающий поток ждет завершения
      */
     void closeAllStreams(Protocol protocol);
 
     /**
-     * Выполняется в потоке обработчика
+     * Выполняется в потоках шардов, результаты суммируются
+     * @param now текущее время: при захвате с интерфейса системное, при чтении файла - время прочитанных пакетов
      */
-    int closeTimeoutStreams(Protocol protocol, long timeoutMillis);
+    int closeTimeoutStreams(Protocol protocol, long timeoutMillis, long now);
 
     void setFilter(String filter);
 
     String getExecutorState();
+
+    /**
+     * Статистика перехвата по интерфейсам, пустая, если трафик не перехватывается с интерфейсов
+     */
+    List<CaptureStatsDto> getCaptureStats();
 }
@@ -0,0 +1,295 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.serega6531.packmate.model.CtfService;
+import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.model.enums.Protocol;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
+import ru.serega6531.packmate.service.StreamPipeline;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Часть обработчика пакетов со своим потоком и своим набором незавершенных стримов.
+ * Пакеты одного стрима всегда попадают в один и тот же шард, поэтому состояние шарда
+ * меняется только из его потока и не требует синхронизации.
+ */
+@Slf4j
+class ProcessorShard {
+
+    // после этого размера шард начинает новый файл, чтобы прочитанные файлы удалялись
+    private static final long SPILL_FILE_ROTATE_SIZE = 256 * 1024 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final StreamPipeline pipeline;
+    private final InFlightPatternMatcher inFlightMatcher;
+    private final FlowMemoryBudget budget;
+
+    private long packetIdCounter = 0;  // меняется только в потоке шарда
+
+    private final FlowTable flows = new FlowTable();
+    private final FlowQueue tcpQueue = new FlowQueue();
+    private final FlowQueue udpQueue = new FlowQueue();
+
+    // статистика сборки tcp по завершенным стримам
+    private long retransmittedBytes = 0;
+    private long reorderedSegments = 0;
+    private long gaps = 0;
+
+    private SpillFile spillFile = null;
+    private boolean spillErrorLogged = false;
+
+    // сколько раз поток чтения ждал места в очереди шарда
+    private final LongAdder queueWaits = new LongAdder();
+
+    /**
+     * Очередь пакетов шарда ограничена: если шард не успевает, поток чтения ждет места в очереди.
+     * При перехвате с интерфейса пакеты, пока поток ждет, копятся в буфере libpcap, а его переполнение
+     * видно в статистике потерь перехвата.
+     * @param queueSize сколько пакетов может ждать обработки
+     */
+    ProcessorShard(ThreadFactory threadFactory, int queueSize, StreamPipeline pipeline,
+                   InFlightPatternMatcher inFlightMatcher, FlowMemoryBudget budget) {
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, this::waitForQueue);
+        this.pipeline = pipeline;
+        this.inFlightMatcher = inFlightMatcher;
+        this.budget = budget;
+    }
+
+    private void waitForQueue(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Shard is shut down");
+        }
+
+        queueWaits.increment();
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Выполняется в потоке шарда.
+     * Tcp сегменты сначала проходят сборку по номерам последовательности, поэтому пакет может быть
+     * отброшен как повтор или добавлен в стрим позже, вместе с недостающими сегментами.
+     * @param sequence номер последовательности tcp, для udp не используется
+     * @return поток, в который добавлен пакет
+     */
+    Flow addPacket(FlowKey key, CtfService service, boolean incoming, long time, int ttl,
+                   long sequence, boolean syn, byte[] content) {
+        final Flow flow = flows.getOrCreate(key);
+
+        if (flow.packets.isEmpty()) {
+            log.debug("New stream started");
+        }
+
+        flow.lastTimestamp = time;
+        getQueue(key.protocol).touch(flow);
+
+        if (key.protocol == Protocol.TCP) {
+            if (flow.reassembler == null) {
+                flow.reassembler = new TcpReassembler();
+            }
+
+            flow.reassembler.accept(key.fromFirst, incoming, sequence, syn, time, ttl, content,
+                    (segmentIncoming, segmentTime, segmentTtl, segment) ->
+                            appendPacket(flow, service, segmentIncoming, segmentTime, segmentTtl, segment));
+            chargeReassembly(flow);
+        } else {
+            appendPacket(flow, service, incoming, time, ttl, content);
+        }
+
+        return flow;
+    }
+
+    /**
+     * Сегменты, ждущие в окне сборки, тоже занимают память и учитываются в общем лимите
+     */
+    private void chargeReassembly(Flow flow) {
+        final int pending = flow.reassembler.getPendingBytes();
+        budget.allocate(pending - flow.reassemblyBytes);
+        flow.reassemblyBytes = pending;
+    }
+
+    /**
+     * @param service сервис для поиска паттернов на лету или null, если искать не нужно
+     */
+    private void appendPacket(Flow flow, CtfService service, boolean incoming, long time, int ttl, byte[] content) {
+        var packet = Packet.builder()
+                .tempId(packetIdCounter++)
+                .ttl(ttl)
+                .timestamp(time)
+                .incoming(incoming)
+                .content(content)
+                .build();
+
+        storePayload(flow, packet, content);
+        flow.packets.add(packet);
+
+        if (service != null && inFlightMatcher.isEnabled() && content.length > 0) {
+            if (flow.inFlightState == null) {
+                flow.inFlightState = new InFlightPatternMatcher.State();
+            }
+            inFlightMatcher.advance(flow.inFlightState, service, incoming, time, content);
+        }
+    }
+
+    /**
+     * Оставляет полезную нагрузку в памяти, пока стрим укладывается в лимиты, иначе вытесняет ее на диск.
+     * Если записать на диск не удалось, нагрузка остается в памяти.
+     */
+    private void storePayload(Flow flow, Packet packet, byte[] content) {
+        if (content.length == 0) {
+            return;
+        }
+
+        if (flow.spilled == null && budget.shouldSpill(flow.memoryBytes, content.length)) {
+            startSpilling(flow);
+        }
+
+        if (flow.spilled == null || !spill(flow, packet, content)) {
+            flow.memoryBytes += content.length;
+            budget.allocate(content.length);
+        }
+    }
+
+    /**
+     * Вытесняет уже накопленные пакеты стрима, дальше все его пакеты сразу пишутся на диск
+     */
+    private void startSpilling(Flow flow) {
+        log.info("Stream {} exceeded the memory budget, spilling it to disk", flow.key);
+        flow.spilled = new SpilledPayloads(budget.getRestoreLimit());
+        budget.flowSpilled();
+
+        for (Packet packet : flow.packets) {
+            final byte[] content = packet.getContent();
+            if (content != null && content.length > 0 && spill(flow, packet, content)) {
+                flow.memoryBytes -= content.length;
+                budget.free(content.length);
+            }
+        }
+    }
+
+    private boolean spill(Flow flow, Packet packet, byte[] content) {
+        try {
+            if (spillFile == null || spillFile.size() >= SPILL_FILE_ROTATE_SIZE) {
+                if (spillFile != null) {
+                    spillFile.seal();
+                }
+                spillFile = null;  // в запечатанный файл больше не пишем, даже если новый создать не удастся
+                spillFile = SpillFile.create(budget.getSpillDirectory());
+            }
+
+            final long offset = spillFile.append(content);
+            flow.spilled.add(packet, spillFile, offset, content.length);
+            packet.setContent(null);
+            budget.bytesSpilled(content.length);
+            spillErrorLogged = false;
+            return true;
+        } catch (IOException e) {
+            if (!spillErrorLogged) {
+                log.error("Failed to spill stream to {}, keeping it in memory", budget.getSpillDirectory(), e);
+                spillErrorLogged = true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Выполняется в потоке шарда.
+     * Udp не имеет фазы закрытия, поэтому закрывается только по таймауту
+     */
+    void checkTcpTermination(Flow flow, boolean fromFirst, boolean ack, boolean fin, boolean rst) {
+        if (flow.updateTcpState(fromFirst, ack, fin, rst)) {
+            finish(flow);
+        }
+    }
+
+    /**
+     * Выполняется в потоке шарда
+     */
+    void closeAllStreams(Protocol protocol) {
+        final FlowQueue queue = getQueue(protocol);
+
+        Flow flow;
+        while ((flow = queue.peekOldest()) != null) {
+            finish(flow);
+        }
+
+        flows.shrinkIfSparse();
+
+        if (flows.size() == 0 && spillFile != null) {
+            spillFile.seal();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Выполняется в потоке шарда.
+     * Просматриваются только потоки с истекшим таймаутом: очередь упорядочена по последней активности.
+     * @return количество стримов, переданных на сохранение
+     */
+    int closeTimeoutStreams(Protocol protocol, long timeoutMillis, long now) {
+        final FlowQueue queue = getQueue(protocol);
+
+        int closed = 0;
+        Flow flow;
+        while ((flow = queue.peekOldest()) != null && now - flow.lastTimestamp > timeoutMillis) {
+            finish(flow);
+            closed++;
+        }
+
+        if (closed > 0) {
+            flows.shrinkIfSparse();
+        }
+
+        return closed;
+    }
+
+    private void finish(Flow flow) {
+        flows.remove(flow);
+        getQueue(flow.key.protocol).remove(flow);
+
+        if (flow.reassembler != null) {
+            // сегменты после пропусков добавляются как есть, весь стрим все равно проверяется при обработке
+            flow.reassembler.flush((incoming, time, ttl, content) -> appendPacket(flow, null, incoming, time, ttl, content));
+            chargeReassembly(flow);
+            retransmittedBytes += flow.reassembler.getRetransmittedBytes();
+            reorderedSegments += flow.reassembler.getReorderedSegments();
+            gaps += flow.reassembler.getGaps();
+        }
+
+        budget.free(flow.memoryBytes);
+        flow.memoryBytes = 0;
+        pipeline.submit(flow.stream, flow.takePackets(), flow.spilled);
+    }
+
+    private FlowQueue getQueue(Protocol protocol) {
+        return protocol == Protocol.TCP ? tcpQueue : udpQueue;
+    }
+
+    @Override
+    public String toString() {
+        return executor.toString() + ", queue waits " + queueWaits.sum() + ", " + flows + ", tcp=" + tcpQueue.size() + ", udp=" + udpQueue.size() +
+                ", retransmitted " + retransmittedBytes / 1024 + " KB, reordered " + reorderedSegments + ", gaps " + gaps;
+    }
+}
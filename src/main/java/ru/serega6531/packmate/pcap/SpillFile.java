@@ -0,0 +1,107 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Временный файл, в который шард дописывает полезную нагрузку слишком больших стримов.
+ * Пишет в файл только поток шарда, читают обработчики завершенных стримов через отображение в память.
+ * Файл удаляется, когда шард перестал в него писать и все записанные в него пакеты прочитаны.
+ */
+@Slf4j
+final class SpillFile {
+
+    private final Path path;
+    private final FileChannel channel;
+
+    private volatile long size = 0;  // меняется только в потоке шарда
+
+    private int references = 0;
+    private boolean sealed = false;
+
+    private SpillFile(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    static SpillFile create(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path path = Files.createTempFile(directory, "packmate-spill-", ".bin");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        return new SpillFile(path, channel);
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Выполняется в потоке шарда. Каждый записанный пакет держит файл, пока не будет вызван release.
+     * @return смещение записанных данных
+     */
+    long append(byte[] content) throws IOException {
+        final long offset = size;
+
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+
+        size = offset + content.length;
+        retain();
+        return offset;
+    }
+
+    /**
+     * Отображает в память участок файла, начиная с offset, длиной не больше maxLength
+     */
+    MappedByteBuffer map(long offset, long maxLength) throws IOException {
+        final long length = Math.min(maxLength, size - offset);
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * Отпускает count прочитанных или отброшенных пакетов
+     */
+    synchronized void release(int count) {
+        references -= count;
+        closeIfUnused();
+    }
+
+    /**
+     * Выполняется в потоке шарда, когда он перестает писать в файл
+     */
+    synchronized void seal() {
+        sealed = true;
+        closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+        if (!sealed || references > 0 || !channel.isOpen()) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to delete spill file {}", path, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName().toString();
+    }
+}
@@ -0,0 +1,116 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.serega6531.packmate.model.Packet;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Пакеты стрима, полезная нагрузка которых вытеснена на диск.
+ * Пока стрим открыт, у таких пакетов нет содержимого; оно возвращается методом restore
+ * в потоке обработчика завершенных стримов, а не в потоке шарда.
+ * В память возвращается не больше restoreLimit байт, остальное содержимое отбрасывается.
+ */
+@Slf4j
+public final class SpilledPayloads {
+
+    // файл отображается в память окнами, а не целиком, чтобы не занимать адресное пространство
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final long restoreLimit;
+    private long bytes = 0;
+
+    private record Entry(Packet packet, SpillFile file, long offset, int length) {}
+
+    /**
+     * @param restoreLimit сколько байт стрима можно вернуть в память
+     */
+    SpilledPayloads(long restoreLimit) {
+        this.restoreLimit = restoreLimit;
+    }
+
+    /**
+     * Выполняется в потоке шарда
+     */
+    void add(Packet packet, SpillFile file, long offset, int length) {
+        entries.add(new Entry(packet, file, offset, length));
+        bytes += length;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Читает содержимое вытесненных пакетов обратно и освобождает файлы.
+     * Пакеты после restoreLimit байт обрезаются, а следующие за ними остаются пустыми.
+     */
+    public void restore() throws IOException {
+        SpillFile mappedFile = null;
+        MappedByteBuffer mapped = null;
+        long mappedOffset = 0;
+        long restored = 0;
+
+        try {
+            for (Entry entry : entries) {
+                final int length = (int) Math.min(entry.length, restoreLimit - restored);
+                if (length <= 0) {
+                    entry.packet.setContent(new byte[0]);
+                    continue;
+                }
+
+                if (entry.file != mappedFile || entry.offset < mappedOffset
+                        || entry.offset + entry.length > mappedOffset + mapped.capacity()) {
+                    mappedFile = entry.file;
+                    mappedOffset = entry.offset;
+                    mapped = entry.file.map(entry.offset, Math.max(MAP_WINDOW, entry.length));
+                }
+
+                byte[] content = new byte[length];
+                mapped.get((int) (entry.offset - mappedOffset), content);
+                entry.packet.setContent(content);
+                restored += length;
+            }
+        } finally {
+            release();
+        }
+
+        if (restored < bytes) {
+            log.warn("Spilled stream is truncated to {} of {} bytes", restored, bytes);
+        }
+    }
+
+    /**
+     * Освобождает файлы без чтения, если стрим не будет обработан
+     */
+    public void release() {
+        SpillFile file = null;
+        int count = 0;
+
+        for (Entry entry : entries) {
+            if (entry.file != file) {
+                if (file != null) {
+                    file.release(count);
+                }
+                file = entry.file;
+                count = 0;
+            }
+            count++;
+        }
+
+        if (file != null) {
+            file.release(count);
+        }
+
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return entries.size() + " packets, " + bytes + " bytes";
+    }
+}
@@ -0,0 +1,284 @@
+package ru.serega6531.packmate.pcap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Сборка tcp стрима по номерам последовательности, отдельно для каждого направления.
+ * Повторно отправленные сегменты отбрасываются, пересекающиеся обрезаются, а пришедшие раньше времени
+ * ждут недостающих данных. Если данных так и нет, после заполнения окна ожидания пропуск принимается как есть.
+ * Пока начало направления неизвестно (syn не виден), первые сегменты ждут в небольшом окне: более ранний
+ * сегмент может прийти позже первого увиденного. Началом считается самый ранний из них, когда окно заполнится
+ * или когда данные отправит другая сторона.
+ * Меняется только из потока шарда.
+ */
+final class TcpReassembler {
+
+    // сколько байт одного направления может ждать пропущенный сегмент
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    // сколько сегментов ждут, пока начало направления неизвестно
+    static final int UNANCHORED_SEGMENTS = 8;
+
+    // такой скачок номера последовательности означает не потерю, а новую последовательность
+    private static final long RESYNC_DISTANCE = 1L << 30;
+
+    @FunctionalInterface
+    interface SegmentConsumer {
+        void accept(boolean incoming, long time, int ttl, byte[] content);
+    }
+
+    private record Segment(boolean incoming, long time, int ttl, byte[] content) {}
+
+    private final Direction first = new Direction();
+    private final Direction second = new Direction();
+
+    private long retransmittedBytes;
+    private long reorderedSegments;
+    private long gaps;
+
+    /**
+     * Принимает сегмент и передает в out все сегменты направления, которые теперь идут подряд
+     * @param fromFirst отправлен ли сегмент первым адресом потока, определяет направление
+     * @param incoming флаг пакета; если оба адреса локальные, он одинаков для обоих направлений
+     * @param sequence номер последовательности из заголовка
+     */
+    void accept(boolean fromFirst, boolean incoming, long sequence, boolean syn, long time, int ttl, byte[] content,
+                SegmentConsumer out) {
+        if (content.length > 0) {
+            // другая сторона ответила, значит ее данные до этого момента уже отправлены
+            (fromFirst ? second : first).anchor(out);
+        }
+
+        (fromFirst ? first : second).accept(incoming, sequence, syn, time, ttl, content, out);
+    }
+
+    /**
+     * Отдает все ожидающие сегменты, не дожидаясь пропущенных данных.
+     * Сегменты двух направлений чередуются по времени, внутри направления порядок сохраняется.
+     */
+    void flush(SegmentConsumer out) {
+        final List<Segment> fromFirst = new ArrayList<>();
+        final List<Segment> fromSecond = new ArrayList<>();
+        first.flush((incoming, time, ttl, content) -> fromFirst.add(new Segment(incoming, time, ttl, content)));
+        second.flush((incoming, time, ttl, content) -> fromSecond.add(new Segment(incoming, time, ttl, content)));
+
+        int i = 0;
+        int j = 0;
+        while (i < fromFirst.size() || j < fromSecond.size()) {
+            final Segment segment = j >= fromSecond.size()
+                    || (i < fromFirst.size() && fromFirst.get(i).time <= fromSecond.get(j).time)
+                    ? fromFirst.get(i++)
+                    : fromSecond.get(j++);
+            out.accept(segment.incoming, segment.time, segment.ttl, segment.content);
+        }
+    }
+
+    /**
+     * Байт в сегментах, ожидающих недостающих данных, в обоих направлениях
+     */
+    int getPendingBytes() {
+        return first.pendingBytes + second.pendingBytes;
+    }
+
+    long getRetransmittedBytes() {
+        return retransmittedBytes;
+    }
+
+    long getReorderedSegments() {
+        return reorderedSegments;
+    }
+
+    long getGaps() {
+        return gaps;
+    }
+
+    private final class Direction {
+
+        private boolean initialized = false;
+        // начало данных известно: был syn или первые сегменты уже отданы
+        private boolean anchored = false;
+        private long nextSequence;  // беззнаковый 32-битный номер следующего ожидаемого байта
+
+        // сегменты после пропуска по позиции начала. Позиции считаются в 64 битах без переполнения,
+        // nextSequence соответствует позиция pendingBase. Пока начало неизвестно, позиции бывают и меньше pendingBase
+        private final TreeMap<Long, Segment> pending = new TreeMap<>();
+        private long pendingBase;
+        private int pendingBytes;
+        private long pendingEnd;  // конец самого дальнего сегмента, пока начало неизвестно
+
+        void accept(boolean incoming, long sequence, boolean syn, long time, int ttl, byte[] content, SegmentConsumer out) {
+            // syn занимает один номер, данные начинаются после него
+            final long dataSequence = (syn ? sequence + 1 : sequence) & 0xFFFF_FFFFL;
+
+            if (!initialized) {
+                initialized = true;
+                nextSequence = dataSequence;
+            }
+
+            if (syn && !anchored) {
+                anchorAt(dataSequence, out);
+            }
+
+            if (content.length == 0) {
+                out.accept(incoming, time, ttl, content);
+                return;
+            }
+
+            long distance = (int) (dataSequence - nextSequence);  // с учетом переполнения номера
+
+            if (Math.abs(distance) > RESYNC_DISTANCE) {
+                flush(out);
+                nextSequence = dataSequence;
+                distance = 0;
+            }
+
+            final Segment segment = new Segment(incoming, time, ttl, content);
+
+            if (!anchored) {
+                addPending(distance, segment, pendingBase + distance < pendingEnd);
+                if (pending.size() > UNANCHORED_SEGMENTS || pendingBytes > MAX_PENDING_BYTES) {
+                    anchor(out);
+                    releaseWindow(out);
+                }
+                return;
+            }
+
+            if (distance + content.length <= 0) {
+                retransmittedBytes += content.length;
+                return;
+            }
+
+            if (distance > 0) {
+                addPending(distance, segment, true);
+                releaseWindow(out);
+                return;
+            }
+
+            if (distance < 0) {
+                retransmittedBytes -= distance;
+                content = Arrays.copyOfRange(content, (int) -distance, content.length);
+            }
+
+            deliver(new Segment(incoming, time, ttl, content), out);
+            drain(out);
+        }
+
+        /**
+         * Начало данных стало известно из syn: ожидающие сегменты до него считаются повторами
+         */
+        private void anchorAt(long dataSequence, SegmentConsumer out) {
+            anchored = true;
+            final long distance = (int) (dataSequence - nextSequence);
+            nextSequence = dataSequence;
+            pendingBase += distance;
+            drain(out);
+        }
+
+        /**
+         * Начало данных так и не стало известно: считаем началом самый ранний из ожидающих сегментов
+         */
+        void anchor(SegmentConsumer out) {
+            if (anchored) {
+                return;
+            }
+
+            anchored = true;
+            if (!pending.isEmpty()) {
+                final long shift = pending.firstKey() - pendingBase;
+                nextSequence = (nextSequence + shift) & 0xFFFF_FFFFL;
+                pendingBase += shift;
+                drain(out);
+            }
+        }
+
+        private void releaseWindow(SegmentConsumer out) {
+            while (pendingBytes > MAX_PENDING_BYTES) {
+                skipGap(out);
+            }
+        }
+
+        /**
+         * @param reordered пришел ли сегмент позже сегментов, идущих после него
+         */
+        private void addPending(long distance, Segment segment, boolean reordered) {
+            if (pending.isEmpty()) {
+                pendingBase = 0;
+                pendingEnd = 0;
+            }
+
+            final long key = pendingBase + distance;
+            final Segment existing = pending.get(key);
+
+            if (existing == null) {
+                pending.put(key, segment);
+                pendingBytes += segment.content.length;
+                if (reordered) {
+                    reorderedSegments++;
+                }
+            } else if (existing.content.length < segment.content.length) {
+                pending.put(key, segment);
+                pendingBytes += segment.content.length - existing.content.length;
+                retransmittedBytes += existing.content.length;
+            } else {
+                retransmittedBytes += segment.content.length;
+            }
+
+            pendingEnd = Math.max(pendingEnd, key + segment.content.length);
+        }
+
+        private void deliver(Segment segment, SegmentConsumer out) {
+            out.accept(segment.incoming, segment.time, segment.ttl, segment.content);
+            nextSequence = (nextSequence + segment.content.length) & 0xFFFF_FFFFL;
+            pendingBase += segment.content.length;
+        }
+
+        /**
+         * Отдает ожидающие сегменты, которые теперь начинаются не позже nextSequence
+         */
+        private void drain(SegmentConsumer out) {
+            Map.Entry<Long, Segment> entry;
+            while ((entry = pending.firstEntry()) != null && entry.getKey() <= pendingBase) {
+                pending.pollFirstEntry();
+                Segment segment = entry.getValue();
+                pendingBytes -= segment.content.length;
+
+                final long overlap = pendingBase - entry.getKey();
+                if (overlap >= segment.content.length) {
+                    retransmittedBytes += segment.content.length;
+                    continue;
+                }
+
+                if (overlap > 0) {
+                    retransmittedBytes += overlap;
+                    segment = new Segment(segment.incoming, segment.time, segment.ttl,
+                            Arrays.copyOfRange(segment.content, (int) overlap, segment.content.length));
+                }
+
+                deliver(segment, out);
+            }
+        }
+
+        /**
+         * Пропущенные данные уже не придут: продолжаем с первого ожидающего сегмента
+         */
+        private void skipGap(SegmentConsumer out) {
+            final long gap = pending.firstKey() - pendingBase;
+            gaps++;
+            nextSequence = (nextSequence + gap) & 0xFFFF_FFFFL;
+            pendingBase += gap;
+            drain(out);
+        }
+
+        void flush(SegmentConsumer out) {
+            anchor(out);
+            while (!pending.isEmpty()) {
+                skipGap(out);
+            }
+        }
+    }
+
+}
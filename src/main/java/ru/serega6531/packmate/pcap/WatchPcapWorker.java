@@ -0,0 +1,140 @@
+package ru.serega6531.packmate.pcap;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.serega6531.packmate.exception.PcapFileNotFoundException;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.service.InFlightPatternMatcher;
+import ru.serega6531.packmate.service.ServicesService;
+import ru.serega6531.packmate.service.StreamPipeline;
+import ru.serega6531.packmate.service.SubscriptionService;
+import ru.serega6531.packmate.utils.IpNetworkSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+
+/**
+ * Чтение дампов, которые tcpdump -G по очереди создает в папке.
+ * Файл считается законченным, когда в папке появляется более новый файл.
+ * Файлы читаются так же, как в режиме FILE, но стримы между файлами не закрываются,
+ * поэтому соединения, попавшие в несколько файлов, собираются целиком.
+ * Имена прочитанных файлов записываются в файл отметок, чтобы после перезапуска не читать их снова.
+ */
+@Slf4j
+public class WatchPcapWorker extends FilePcapWorker {
+
+    private static final String CHECKPOINT_FILE = ".packmate-consumed";
+
+    // на случай пропущенных событий папка периодически просматривается и без них
+    private static final long RESCAN_INTERVAL_SECONDS = 5;
+
+    private final File watchDirectory;
+    private final Path checkpoint;
+    private final Set<String> consumed = new HashSet<>();
+
+    public WatchPcapWorker(ServicesService servicesService,
+                           StreamPipeline pipeline,
+                           InFlightPatternMatcher inFlightMatcher,
+                           SubscriptionService subscriptionService,
+                           IpNetworkSet localNetworks,
+                           String directoryName,
+                           PackmateProperties.TimeoutProperties timeout,
+                           PackmateProperties.ProcessingProperties processing) {
+        super(servicesService, pipeline, inFlightMatcher, subscriptionService, localNetworks, directoryName, timeout, processing, false);
+
+        watchDirectory = new File(directory, directoryName);
+        if (!watchDirectory.isDirectory()) {
+            throw new PcapFileNotFoundException(watchDirectory, directory);
+        }
+
+        checkpoint = watchDirectory.toPath().resolve(CHECKPOINT_FILE);
+    }
+
+    @SneakyThrows
+    @Override
+    public void start() {
+        if (Files.exists(checkpoint)) {
+            consumed.addAll(Files.readAllLines(checkpoint, StandardCharsets.UTF_8));
+        }
+
+        log.info("Watching {}, {} files already consumed", watchDirectory.getAbsolutePath(), consumed.size());
+        setRunning();
+        loopExecutorService.execute(this::watch);
+    }
+
+    @SneakyThrows
+    private void watch() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            watchDirectory.toPath().register(watchService, ENTRY_CREATE);
+
+            while (isRunning()) {
+                readClosedFiles();
+
+                WatchKey key = watchService.poll(RESCAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();  // сами события не нужны, папка все равно просматривается целиком
+                    key.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Читает все непрочитанные файлы, кроме самого нового: в него tcpdump, возможно, еще пишет
+     */
+    private void readClosedFiles() throws IOException {
+        final List<File> files = listDumps();
+
+        for (int i = 0; i < files.size() - 1 && isRunning(); i++) {
+            final File file = files.get(i);
+            if (consumed.contains(file.getName())) {
+                continue;
+            }
+
+            log.info("Reading {}", file.getName());
+            readFile(file);
+
+            if (isRunning()) {  // прочитанный не до конца файл будет прочитан заново после перезапуска
+                markConsumed(file);
+            }
+        }
+    }
+
+    /**
+     * Дампы в порядке создания. tcpdump -G называет файлы по времени, поэтому при равном времени изменения
+     * порядок определяет имя.
+     */
+    private List<File> listDumps() throws IOException {
+        try (Stream<Path> paths = Files.list(watchDirectory.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .filter(file -> !file.getName().startsWith("."))
+                    .sorted(Comparator.comparingLong(File::lastModified).thenComparing(File::getName))
+                    .toList();
+        }
+    }
+
+    private void markConsumed(File file) throws IOException {
+        consumed.add(file.getName());
+        Files.writeString(checkpoint, file.getName() + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+}
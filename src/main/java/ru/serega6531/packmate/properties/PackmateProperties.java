@@ -4,17 +4,19 @@ package ru.serega6531.packmate.properties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import ru.serega6531.packmate.model.enums.CaptureMode;
 
-import java.net.InetAddress;
+import java.util.List;
 
 @ConfigurationProperties("packmate")
 public record PackmateProperties(
     CaptureMode captureMode,
-    String interfaceName,
+    List<String> interfaceName,
     String pcapFile,
-    InetAddress localIp,
+    List<String> localIp,
     WebProperties web,
     TimeoutProperties timeout,
     CleanupProperties cleanup,
+    ProcessingProperties processing,
+    CaptureProperties capture,
     boolean ignoreEmptyPackets
 ) {
 
@@ -35,4 +37,30 @@ public record PackmateProperties(
             int interval
     ){}
 
+    /**
+     * Параметры перехвата в режиме LIVE. Нулевое значение означает значение libpcap по умолчанию.
+     */
+    public record CaptureProperties(
+            int snaplen,
+            int bufferSize,
+            int timeout,
+            boolean immediateMode
+    ){}
+
+    public record ProcessingProperties(
+            int shards,
+            int workers,
+            int queueSize,
+            int saveBatchSize,
+            int saveBatchDelay,
+            boolean inFlightMatching,
+            int lookbackThreads,
+            boolean rawDecoder,
+            int fileReaders,
+            int flowMemoryLimit,
+            int memoryLimit,
+            String spillDirectory,
+            int decompressedSizeLimit
+    ){}
+
 }
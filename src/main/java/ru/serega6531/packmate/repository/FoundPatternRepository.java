@@ -0,0 +1,7 @@
+package ru.serega6531.packmate.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import ru.serega6531.packmate.model.FoundPattern;
+
+public interface FoundPatternRepository extends JpaRepository<FoundPattern, Long> {
+}
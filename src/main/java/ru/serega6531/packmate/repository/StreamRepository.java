@@ -1,6 +1,7 @@
 package ru.serega6531.packmate.repository;
 
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Modifying;
@@ -8,6 +9,7 @@ import org.springframework.data.jpa.repository.Query;
 import ru.serega6531.packmate.model.Packet;
 import ru.serega6531.packmate.model.Stream;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface StreamRepository extends JpaRepository<Stream, Long>, JpaSpecificationExecutor<Stream> {
@@ -26,4 +28,16 @@ public interface StreamRepository extends JpaRepository<Stream, Long>, JpaSpecif
     )
     List<Packet> getPackets(long streamId, Long startingFrom, Pageable pageable);
 
+    long countByStartTimestampBetween(long start, long end);
+
+    @Query("SELECT s.id FROM Stream s " +
+            "WHERE s.startTimestamp BETWEEN :start AND :end " +
+            "AND (:afterId IS NULL OR s.id > :afterId) " +
+            "ORDER BY s.id"
+    )
+    List<Long> findIdsBetweenTimestamps(long start, long end, Long afterId, Pageable pageable);
+
+    @EntityGraph(attributePaths = "packets")
+    List<Stream> findAllByIdIn(Collection<Long> ids);
+
 }
@@ -0,0 +1,77 @@
+package ru.serega6531.packmate.service;
+
+import lombok.experimental.UtilityClass;
+import org.springframework.security.crypto.codec.Hex;
+import ru.serega6531.packmate.model.Pattern;
+import ru.serega6531.packmate.model.enums.PatternSearchType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Кеш скомпилированных значений паттернов по id паттерна.
+ * Хранит только неизменяемые объекты (регулярные выражения и декодированные байты),
+ * поэтому их можно одновременно использовать из нескольких потоков.
+ * Запись, скомпилированная из другого значения или типа паттерна, считается устаревшей и компилируется заново.
+ */
+@UtilityClass
+public class CompiledPatternCache {
+
+    private final Map<Integer, Entry> cache = new ConcurrentHashMap<>();
+
+    public java.util.regex.Pattern getRegex(Pattern pattern) {
+        return (java.util.regex.Pattern) get(pattern, java.util.regex.Pattern::compile);
+    }
+
+    public byte[] getBytes(Pattern pattern) {
+        return ((byte[]) get(pattern, Hex::decode)).clone();
+    }
+
+    /**
+     * Проверяет, что паттерн компилируется, и бросает IllegalArgumentException, если нет
+     */
+    public void validate(Pattern pattern) {
+        switch (pattern.getSearchType()) {
+            case REGEX -> getRegex(pattern);
+            case SUBSTRING -> {
+                if (pattern.getValue().isEmpty()) {
+                    throw new IllegalArgumentException("Substring must not be empty");
+                }
+            }
+            case SUBBYTES -> {
+                if (getBytes(pattern).length == 0) {
+                    throw new IllegalArgumentException("Bytes sequence must not be empty");
+                }
+            }
+        }
+    }
+
+    public void evict(int patternId) {
+        cache.remove(patternId);
+    }
+
+    private Object get(Pattern pattern, Function<String, Object> compiler) {
+        if (pattern.getId() == null) {  // паттерн еще не сохранен
+            return compiler.apply(pattern.getValue());
+        }
+
+        Entry entry = cache.get(pattern.getId());
+        if (entry != null && entry.isCompiledFrom(pattern)) {
+            return entry.compiled();
+        }
+
+        Entry compiled = new Entry(pattern.getValue(), pattern.getSearchType(), compiler.apply(pattern.getValue()));
+        cache.put(pattern.getId(), compiled);
+        return compiled.compiled();
+    }
+
+    private record Entry(String value, PatternSearchType searchType, Object compiled) {
+
+        boolean isCompiledFrom(Pattern pattern) {
+            return searchType == pattern.getSearchType() && value.equals(pattern.getValue());
+        }
+
+    }
+
+}
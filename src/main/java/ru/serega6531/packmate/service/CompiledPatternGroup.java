@@ -0,0 +1,91 @@
+package ru.serega6531.packmate.service;
+
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+import ru.serega6531.packmate.model.Pattern;
+import ru.serega6531.packmate.utils.AhoCorasick;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Набор паттернов, подготовленный для поиска в пакетах.
+ * Все подстроки ищутся одним автоматом Ахо-Корасик, все последовательности байт - другим,
+ * регулярные выражения компилируются заранее.
+ * Дополнительно подстроки вместе с последовательностями байт собираются в байтовый автомат
+ * для поиска по мере поступления пакетов, когда содержимое не декодируется в строку.
+ * Объект неизменяемый и используется из нескольких потоков.
+ */
+@Getter
+public class CompiledPatternGroup {
+
+    public static final CompiledPatternGroup EMPTY = compile(List.of());
+
+    private final List<Pattern> patterns;
+
+    // по индексу паттерна в patterns, null для паттернов других типов
+    private final java.util.regex.Pattern[] regexes;
+
+    // индекс паттерна в patterns для каждого образца автомата
+    private final int[] substringIndexes;
+    private final int[] subbytesIndexes;
+
+    @Nullable
+    private final AhoCorasick substrings;
+    @Nullable
+    private final AhoCorasick subbytes;
+
+    // подстроки в байтах и последовательности байт, для поиска в еще не завершенных стримах
+    private final int[] streamingIndexes;
+    @Nullable
+    private final AhoCorasick streaming;
+
+    private CompiledPatternGroup(List<Pattern> patterns) {
+        this.patterns = patterns;
+        this.regexes = new java.util.regex.Pattern[patterns.size()];
+
+        List<String> substringValues = new ArrayList<>();
+        List<Integer> substringIdx = new ArrayList<>();
+        List<byte[]> subbytesValues = new ArrayList<>();
+        List<Integer> subbytesIdx = new ArrayList<>();
+        List<byte[]> streamingValues = new ArrayList<>();
+        List<Integer> streamingIdx = new ArrayList<>();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern pattern = patterns.get(i);
+            switch (pattern.getSearchType()) {
+                case REGEX -> regexes[i] = CompiledPatternCache.getRegex(pattern);
+                case SUBSTRING -> {
+                    substringValues.add(pattern.getValue());
+                    substringIdx.add(i);
+                    streamingValues.add(pattern.getValue().getBytes());
+                    streamingIdx.add(i);
+                }
+                case SUBBYTES -> {
+                    byte[] bytes = CompiledPatternCache.getBytes(pattern);
+                    subbytesValues.add(bytes);
+                    subbytesIdx.add(i);
+                    streamingValues.add(bytes);
+                    streamingIdx.add(i);
+                }
+            }
+        }
+
+        this.substringIndexes = substringIdx.stream().mapToInt(Integer::intValue).toArray();
+        this.subbytesIndexes = subbytesIdx.stream().mapToInt(Integer::intValue).toArray();
+        this.substrings = substringValues.isEmpty() ? null : AhoCorasick.ofStrings(substringValues);
+        this.subbytes = subbytesValues.isEmpty() ? null : AhoCorasick.ofBytes(subbytesValues);
+        this.streamingIndexes = streamingIdx.stream().mapToInt(Integer::intValue).toArray();
+        this.streaming = streamingValues.isEmpty() ? null : AhoCorasick.ofBytes(streamingValues);
+    }
+
+    public static CompiledPatternGroup compile(Collection<Pattern> patterns) {
+        return new CompiledPatternGroup(List.copyOf(patterns));
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+}
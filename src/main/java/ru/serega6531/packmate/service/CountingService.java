@@ -28,7 +28,7 @@ public class CountingService {
         this.subscriptionService = subscriptionService;
     }
 
-    void countStream(int serviceId, int packets) {
+    synchronized void countStream(int serviceId, int packets) {
         getCounter(servicesPackets, serviceId).increment(packets);
         getCounter(servicesStreams, serviceId).increment();
 
@@ -37,7 +37,7 @@ public class CountingService {
     }
 
     @Scheduled(cron = "0 * * ? * *")
-    public void sendCounters() {
+    public synchronized void sendCounters() {
         subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.COUNTERS_UPDATE,
                 new CountersHolder(
                         toIntegerMap(servicesPackets), toIntegerMap(servicesStreams),
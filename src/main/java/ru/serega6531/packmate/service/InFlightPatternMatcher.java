@@ -0,0 +1,89 @@
+package ru.serega6531.packmate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.serega6531.packmate.model.CtfService;
+import ru.serega6531.packmate.model.Pattern;
+import ru.serega6531.packmate.model.enums.PatternActionType;
+import ru.serega6531.packmate.model.enums.PatternDirectionType;
+import ru.serega6531.packmate.model.enums.SubscriptionMessageType;
+import ru.serega6531.packmate.model.pojo.PatternSeenDto;
+import ru.serega6531.packmate.model.pojo.SubscriptionMessage;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.utils.AhoCorasick;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Поиск паттернов в еще не завершенных стримах, по мере поступления пакетов.
+ * Ищутся только подстроки и последовательности байт: состояние автомата для каждого направления
+ * сохраняется между пакетами, поэтому находятся и вхождения на границе пакетов.
+ * О каждом паттерне в стриме сообщается один раз, не дожидаясь закрытия стрима.
+ * Полный поиск паттернов после закрытия стрима при этом не меняется.
+ */
+@Service
+@Slf4j
+public class InFlightPatternMatcher {
+
+    private final PatternService patternService;
+    private final SubscriptionService subscriptionService;
+    private final boolean enabled;
+
+    @Autowired
+    public InFlightPatternMatcher(PatternService patternService,
+                                  SubscriptionService subscriptionService,
+                                  PackmateProperties properties) {
+        this.patternService = patternService;
+        this.subscriptionService = subscriptionService;
+        this.enabled = properties.processing().inFlightMatching();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Продвигает поиск по очередному пакету стрима. Выполняется в потоке, который обрабатывает пакеты этого стрима.
+     */
+    public void advance(State state, CtfService service, boolean incoming, long timestamp, byte[] content) {
+        final PatternDirectionType direction = incoming ? PatternDirectionType.INPUT : PatternDirectionType.OUTPUT;
+        final CompiledPatternGroup group = patternService.getGroup(service, direction, PatternActionType.FIND);
+        final AhoCorasick automaton = group.getStreaming();
+
+        if (automaton == null) {
+            return;
+        }
+
+        final int directionIdx = incoming ? 0 : 1;
+        if (state.groups[directionIdx] != group) {  // паттерны изменились, старое состояние автомата не подходит
+            state.groups[directionIdx] = group;
+            state.automatonStates[directionIdx] = AhoCorasick.ROOT;
+        }
+
+        state.automatonStates[directionIdx] = automaton.search(state.automatonStates[directionIdx], content,
+                (idx, start, end) -> {
+                    final Pattern pattern = group.getPatterns().get(group.getStreamingIndexes()[idx]);
+                    if (state.seenPatterns.add(pattern.getId())) {
+                        log.debug("Pattern {} seen in an unfinished stream", pattern.getName());
+                        subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.PATTERN_SEEN,
+                                new PatternSeenDto(pattern.getId(), service.getPort(), timestamp)));
+                    }
+                });
+    }
+
+    /**
+     * Состояние поиска в одном стриме
+     */
+    public static class State {
+
+        // для входящих и исходящих пакетов
+        private final CompiledPatternGroup[] groups = new CompiledPatternGroup[2];
+        private final int[] automatonStates = new int[2];
+
+        private final Set<Integer> seenPatterns = new HashSet<>();
+
+    }
+
+}
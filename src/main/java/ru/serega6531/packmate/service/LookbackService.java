@@ -0,0 +1,203 @@
+package ru.serega6531.packmate.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.serega6531.packmate.model.FoundPattern;
+import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.model.Pattern;
+import ru.serega6531.packmate.model.Stream;
+import ru.serega6531.packmate.model.enums.PatternDirectionType;
+import ru.serega6531.packmate.model.enums.SubscriptionMessageType;
+import ru.serega6531.packmate.model.pojo.LookbackProgressDto;
+import ru.serega6531.packmate.model.pojo.SubscriptionMessage;
+import ru.serega6531.packmate.properties.PackmateProperties;
+import ru.serega6531.packmate.repository.FoundPatternRepository;
+import ru.serega6531.packmate.repository.StreamRepository;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Поиск нового паттерна в уже сохраненных стримах.
+ * Стримы выбираются страницами по возрастанию id, каждая страница обрабатывается в отдельной транзакции
+ * в пуле потоков, так что в памяти одновременно находится только несколько страниц.
+ * Найденные вхождения сохраняются пачкой на страницу, о ходе поиска сообщается подписчикам.
+ */
+@Service
+@Slf4j
+public class LookbackService {
+
+    private static final int CHUNK_SIZE = 100;
+
+    private static final String INSERT_FOUND_PATTERN =
+            "INSERT INTO stream_found_patterns (stream_id, pattern_id) VALUES (?, ?) ON CONFLICT DO NOTHING";
+
+    private final StreamRepository streamRepository;
+    private final FoundPatternRepository foundPatternRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final SubscriptionService subscriptionService;
+
+    private final ForkJoinPool pool;
+    private final int maxChunksInProgress;
+
+    @Autowired
+    public LookbackService(StreamRepository streamRepository,
+                           FoundPatternRepository foundPatternRepository,
+                           JdbcTemplate jdbcTemplate,
+                           TransactionTemplate transactionTemplate,
+                           SubscriptionService subscriptionService,
+                           PackmateProperties properties) {
+        this.streamRepository = streamRepository;
+        this.foundPatternRepository = foundPatternRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.subscriptionService = subscriptionService;
+
+        int threads = Math.max(1, properties.processing().lookbackThreads());
+        this.maxChunksInProgress = threads * 2;
+        this.pool = new ForkJoinPool(threads, this::newWorkerThread, null, false);
+    }
+
+    @Async
+    public void lookBack(Pattern pattern, long start, long end) {
+        final long total = streamRepository.countByStartTimestampBetween(start, end);
+        final CompiledPatternGroup group = CompiledPatternGroup.compile(List.of(pattern));
+        final Progress progress = new Progress(pattern.getId(), total);
+
+        final Deque<ForkJoinTask<?>> chunks = new ArrayDeque<>();
+        Long lastId = null;
+
+        try {
+            while (true) {
+                List<Long> ids = streamRepository.findIdsBetweenTimestamps(start, end, lastId, Pageable.ofSize(CHUNK_SIZE));
+                if (ids.isEmpty()) {
+                    break;
+                }
+
+                lastId = ids.get(ids.size() - 1);
+                chunks.add(pool.submit(() -> processChunk(ids, pattern, group, progress)));
+
+                // не выбираем следующие страницы, пока предыдущие не обработаны
+                while (chunks.size() >= maxChunksInProgress) {
+                    chunks.poll().join();
+                }
+            }
+
+            while (!chunks.isEmpty()) {
+                chunks.poll().join();
+            }
+        } catch (Exception e) {
+            log.error("Lookback for pattern '{}' failed", pattern.getName(), e);
+        }
+
+        log.info("Finished lookback for pattern '{}': {} streams scanned, {} matched",
+                pattern.getName(), progress.scanned.get(), progress.matched.get());
+        subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.FINISH_LOOKBACK, pattern.getId()));
+    }
+
+    private void processChunk(List<Long> ids, Pattern pattern, CompiledPatternGroup group, Progress progress) {
+        final Integer matched = transactionTemplate.execute(status -> {
+            final List<Stream> streams = streamRepository.findAllByIdIn(ids);
+            final List<FoundPattern> foundPatterns = new ArrayList<>();
+            final List<Long> matchedStreams = new ArrayList<>();
+
+            for (Stream stream : streams) {
+                if (matchStream(stream.getPackets(), pattern, group, foundPatterns)) {
+                    matchedStreams.add(stream.getId());
+                }
+            }
+
+            foundPatternRepository.saveAll(foundPatterns);
+            jdbcTemplate.batchUpdate(INSERT_FOUND_PATTERN, matchedStreams, matchedStreams.size(), (ps, streamId) -> {
+                ps.setLong(1, streamId);
+                ps.setInt(2, pattern.getId());
+            });
+
+            return matchedStreams.size();
+        });
+
+        progress.matched.addAndGet(matched != null ? matched : 0);
+        progress.chunkFinished(ids.size());
+    }
+
+    private boolean matchStream(List<Packet> packets, Pattern pattern, CompiledPatternGroup group,
+                                List<FoundPattern> foundPatterns) {
+        boolean matched = false;
+
+        for (Packet packet : packets) {
+            PatternDirectionType direction = packet.isIncoming() ? PatternDirectionType.INPUT : PatternDirectionType.OUTPUT;
+
+            if (pattern.getDirectionType() != PatternDirectionType.BOTH && pattern.getDirectionType() != direction) {
+                continue;
+            }
+
+            final Set<FoundPattern> matches = new PatternMatcher(packet.getContent()).findMatches(group);
+
+            if (!matches.isEmpty()) {
+                matches.forEach(m -> m.setPacket(packet));
+                foundPatterns.addAll(matches);
+
+                matched = true;
+            }
+        }
+
+        return matched;
+    }
+
+    private ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("lookback-" + thread.getPoolIndex());
+        return thread;
+    }
+
+    @PreDestroy
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    private class Progress {
+
+        private final int patternId;
+        private final long total;
+
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicInteger lastPercent = new AtomicInteger(-1);
+
+        Progress(int patternId, long total) {
+            this.patternId = patternId;
+            this.total = total;
+        }
+
+        /**
+         * Сообщение отправляется, только если процент выполнения изменился
+         */
+        void chunkFinished(int streams) {
+            final long done = scanned.addAndGet(streams);
+            final int percent = total > 0 ? (int) Math.min(100, done * 100 / total) : 100;
+            final int previous = lastPercent.get();
+
+            if (percent > previous && lastPercent.compareAndSet(previous, percent)) {
+                subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.LOOKBACK_PROGRESS,
+                        new LookbackProgressDto(patternId, done, total, percent)));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+package ru.serega6531.packmate.service;
+
+import ru.serega6531.packmate.model.Pattern;
+import ru.serega6531.packmate.model.enums.PatternActionType;
+import ru.serega6531.packmate.model.enums.PatternDirectionType;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Неизменяемый индекс включенных паттернов. Для каждого сервиса, направления и действия
+ * заранее собран скомпилированный набор, так что поиск набора для пакета не требует фильтрации и аллокаций.
+ * При изменении паттернов индекс пересоздается целиком.
+ */
+class PatternIndex {
+
+    private static final int DIRECTIONS = PatternDirectionType.values().length;
+    private static final int ACTIONS = PatternActionType.values().length;
+
+    // отсортированные id сервисов, у которых есть собственные паттерны, и наборы для них
+    private final int[] serviceIds;
+    private final CompiledPatternGroup[][] serviceGroups;
+
+    // наборы для сервисов без собственных паттернов: только паттерны, не привязанные к сервису
+    private final CompiledPatternGroup[] commonGroups;
+
+    private PatternIndex(Collection<Pattern> patterns) {
+        final List<Pattern> enabled = patterns.stream()
+                .filter(pattern -> pattern.isEnabled() && !pattern.isDeleted())
+                .toList();
+
+        serviceIds = enabled.stream()
+                .map(Pattern::getServiceId)
+                .filter(Objects::nonNull)
+                .mapToInt(Integer::intValue)
+                .distinct()
+                .sorted()
+                .toArray();
+
+        serviceGroups = new CompiledPatternGroup[serviceIds.length][];
+        for (int i = 0; i < serviceIds.length; i++) {
+            serviceGroups[i] = buildGroups(enabled, serviceIds[i]);
+        }
+
+        commonGroups = buildGroups(enabled, null);
+    }
+
+    static PatternIndex build(Collection<Pattern> patterns) {
+        return new PatternIndex(patterns);
+    }
+
+    CompiledPatternGroup get(int serviceId, PatternDirectionType directionType, PatternActionType actionType) {
+        final int serviceIdx = Arrays.binarySearch(serviceIds, serviceId);
+        final CompiledPatternGroup[] groups = serviceIdx >= 0 ? serviceGroups[serviceIdx] : commonGroups;
+        return groups[index(directionType, actionType)];
+    }
+
+    private static CompiledPatternGroup[] buildGroups(List<Pattern> enabled, Integer serviceId) {
+        final CompiledPatternGroup[] groups = new CompiledPatternGroup[DIRECTIONS * ACTIONS];
+
+        for (PatternDirectionType directionType : PatternDirectionType.values()) {
+            for (PatternActionType actionType : PatternActionType.values()) {
+                final List<Pattern> list = enabled.stream()
+                        .filter(p -> p.getServiceId() == null || p.getServiceId().equals(serviceId))
+                        .filter(p -> p.getActionType() == actionType)
+                        .filter(p -> p.getDirectionType() == directionType || p.getDirectionType() == PatternDirectionType.BOTH)
+                        .toList();
+
+                groups[index(directionType, actionType)] = list.isEmpty() ?
+                        CompiledPatternGroup.EMPTY :
+                        CompiledPatternGroup.compile(list);
+            }
+        }
+
+        return groups;
+    }
+
+    private static int index(PatternDirectionType directionType, PatternActionType actionType) {
+        return directionType.ordinal() * ACTIONS + actionType.ordinal();
+    }
+
+}
@@ -1,139 +1,214 @@
 package ru.serega6531.packmate.service;
 
-import lombok.SneakyThrows;
-import org.springframework.security.crypto.codec.Hex;
+import org.jetbrains.annotations.Nullable;
 import ru.serega6531.packmate.model.FoundPattern;
 import ru.serega6531.packmate.model.Pattern;
-import ru.serega6531.packmate.utils.KMPByteSearcher;
-import ru.serega6531.packmate.utils.KMPStringSearcher;
+import ru.serega6531.packmate.model.enums.PatternSearchType;
+import ru.serega6531.packmate.utils.AhoCorasick;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 
+/**
+ * Поиск паттернов в содержимом одного пакета.
+ * Один объект можно использовать для нескольких наборов паттернов:
+ * строковое представление пакета создается только при первой необходимости и затем переиспользуется.
+ */
 public class PatternMatcher {
 
-    private static final Map<String, java.util.regex.Pattern> compiledRegexes = new HashMap<>();
-    private static final Map<String, KMPStringSearcher> compiledStringKmps = new HashMap<>();
-    private static final Map<String, KMPByteSearcher> compiledByteKmps = new HashMap<>();
+    /**
+     * Максимальное число вхождений в одном пакете, остальные вхождения отбрасываются
+     */
+    public static final int MAX_MATCHES_PER_PACKET = 1000;
+
+    // число пакетов, в которых было найдено больше вхождений, чем MAX_MATCHES_PER_PACKET
+    private static final LongAdder overflowedPackets = new LongAdder();
 
     private final byte[] contentBytes;
-    private final String content;
-    private final List<Pattern> patterns;
+    private String content;
+
+    @Nullable
+    private final CompiledPatternGroup group;
 
-    private final Set<FoundPattern> result = new HashSet<>();
+    public PatternMatcher(byte[] contentBytes) {
+        this.contentBytes = contentBytes;
+        this.group = null;
+    }
 
     public PatternMatcher(byte[] contentBytes, List<Pattern> patterns) {
+        this(contentBytes, CompiledPatternGroup.compile(patterns));
+    }
+
+    public PatternMatcher(byte[] contentBytes, CompiledPatternGroup group) {
         this.contentBytes = contentBytes;
-        this.content = new String(contentBytes);
-        this.patterns = patterns;
+        this.group = group;
+    }
+
+    public String getContent() {
+        if (content == null) {
+            content = new String(contentBytes);
+        }
+
+        return content;
     }
 
     public Set<FoundPattern> findMatches() {
-        patterns.forEach(this::match);
-        return result;
+        return findMatches(Objects.requireNonNull(group, "Pattern group is not set"));
     }
 
-    private void match(Pattern pattern) {
-        switch (pattern.getSearchType()) {
-            case REGEX -> matchRegex(pattern);
-            case SUBSTRING -> matchSubstring(pattern);
-            case SUBBYTES -> matchSubbytes(pattern);
+    public Set<FoundPattern> findMatches(CompiledPatternGroup group) {
+        if (group.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        final List<Pattern> patterns = group.getPatterns();
+        final List<List<FoundPattern>> automatonMatches = findAutomatonMatches(group);
+        final MatchesSet result = new MatchesSet();
+
+        // результаты добавляются в порядке паттернов, как если бы каждый паттерн искался отдельно
+        for (int i = 0; i < patterns.size() && !result.overflowed; i++) {
+            final Pattern pattern = patterns.get(i);
+
+            if (pattern.getSearchType() == PatternSearchType.REGEX) {
+                matchRegex(pattern, group.getRegexes()[i], result);
+            } else {
+                for (FoundPattern found : automatonMatches.get(i)) {
+                    if (!result.addIfPossible(found)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (result.overflowed) {
+            overflowedPackets.increment();
         }
+
+        return new HashSet<>(result.matches.values());
     }
 
-    private void matchRegex(Pattern pattern) {
-        final var regex = compileRegex(pattern);
-        final Matcher matcher = regex.matcher(content);
+    public static long getOverflowedPackets() {
+        return overflowedPackets.sum();
+    }
+
+    /**
+     * Проверяет, есть ли в пакете хотя бы одно вхождение любого паттерна из набора.
+     * Останавливается на первом найденном вхождении, позиции не вычисляются.
+     */
+    public boolean matchesAny(CompiledPatternGroup group) {
+        if (group.isEmpty()) {
+            return false;
+        }
+
+        final AhoCorasick subbytes = group.getSubbytes();
+        if (subbytes != null && subbytes.containsAny(contentBytes)) {
+            return true;
+        }
+
+        final AhoCorasick substrings = group.getSubstrings();
+        if (substrings != null && substrings.containsAny(getContent())) {
+            return true;
+        }
+
+        for (java.util.regex.Pattern regex : group.getRegexes()) {
+            if (regex != null && regex.matcher(getContent()).find()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void matchRegex(Pattern pattern, java.util.regex.Pattern regex, MatchesSet result) {
+        final Matcher matcher = regex.matcher(getContent());
         int startPos = 0;
 
         while (matcher.find(startPos)) {
-            addIfPossible(FoundPattern.builder()
+            final boolean canContinue = result.addIfPossible(FoundPattern.builder()
                     .patternId(pattern.getId())
                     .startPosition(matcher.start())
                     .endPosition(matcher.end() - 1)
                     .build());
-            startPos = matcher.end();
-        }
-    }
-
-    private void matchSubstring(Pattern pattern) {
-        final String value = pattern.getValue();
-        KMPStringSearcher searcher = compileStringKMP(pattern);
-        StringReader reader = new StringReader(content);
 
-        while (true) {
-            int end = searcher.search(reader) - 1;
-
-            if (end < 0) {
-                searcher.reset();
-                return;
+            if (!canContinue) {
+                break;
             }
 
-            int start = end - value.length() + 1;
-            addIfPossible(FoundPattern.builder()
-                    .patternId(pattern.getId())
-                    .startPosition(start)
-                    .endPosition(end)
-                    .build());
+            startPos = matcher.end();
         }
     }
 
-    @SneakyThrows
-    private void matchSubbytes(Pattern pattern) {
-        final byte[] value = Hex.decode(pattern.getValue());
-        KMPByteSearcher searcher = compileByteKMP(pattern);
-        InputStream is = new ByteArrayInputStream(contentBytes);
+    /**
+     * Один проход автомата по пакету для всех подстрок и один для всех последовательностей байт.
+     * Вхождения одного паттерна не пересекаются: следующее ищется после конца предыдущего.
+     */
+    private List<List<FoundPattern>> findAutomatonMatches(CompiledPatternGroup group) {
+        final List<Pattern> patterns = group.getPatterns();
+        final List<List<FoundPattern>> matches = new ArrayList<>(patterns.size());
+        for (int i = 0; i < patterns.size(); i++) {
+            matches.add(new ArrayList<>());
+        }
 
-        while (true) {
-            int end = searcher.search(is) - 1;
+        final int[] lastEnds = new int[patterns.size()];
+        Arrays.fill(lastEnds, -1);
 
-            if (end < 0) {
-                searcher.reset();
-                return;
-            }
-
-            int start = end - value.length + 1;
-            addIfPossible(FoundPattern.builder()
-                    .patternId(pattern.getId())
-                    .startPosition(start)
-                    .endPosition(end)
-                    .build());
+        final AhoCorasick substrings = group.getSubstrings();
+        if (substrings != null) {
+            substrings.search(getContent(), (idx, start, end) ->
+                    collectMatch(group, matches, lastEnds, group.getSubstringIndexes()[idx], start, end));
         }
-    }
 
-    private void addIfPossible(FoundPattern found) {
-        if (result.stream().noneMatch(match ->
-                between(match.getStartPosition(), match.getEndPosition(), found.getStartPosition()) ||
-                        between(match.getStartPosition(), match.getEndPosition(), found.getEndPosition()))) {
-            result.add(found);
+        final AhoCorasick subbytes = group.getSubbytes();
+        if (subbytes != null) {
+            subbytes.search(contentBytes, (idx, start, end) ->
+                    collectMatch(group, matches, lastEnds, group.getSubbytesIndexes()[idx], start, end));
         }
-    }
 
-    private boolean between(int a, int b, int x) {
-        return a <= x && x <= b;
+        return matches;
     }
 
-    static void compilePattern(Pattern pattern) {
-        switch (pattern.getSearchType()) {
-            case REGEX -> compileRegex(pattern);
-            case SUBSTRING -> compileStringKMP(pattern);
-            case SUBBYTES -> compileByteKMP(pattern);
+    private void collectMatch(CompiledPatternGroup group, List<List<FoundPattern>> matches, int[] lastEnds,
+                              int patternIndex, int start, int end) {
+        if (start <= lastEnds[patternIndex]) {
+            return;
         }
-    }
 
-    private static java.util.regex.Pattern compileRegex(Pattern pattern) {
-        return compiledRegexes.computeIfAbsent(pattern.getValue(), java.util.regex.Pattern::compile);
+        lastEnds[patternIndex] = end;
+        matches.get(patternIndex).add(FoundPattern.builder()
+                .patternId(group.getPatterns().get(patternIndex).getId())
+                .startPosition(start)
+                .endPosition(end)
+                .build());
     }
 
-    private static KMPStringSearcher compileStringKMP(Pattern pattern) {
-        return compiledStringKmps.computeIfAbsent(pattern.getValue(), val -> new KMPStringSearcher(val.toCharArray()));
-    }
+    /**
+     * Непересекающиеся вхождения, упорядоченные по началу.
+     * Так как вхождения не пересекаются, с новым вхождением может пересечься только
+     * ближайшее вхождение, начинающееся не позже его конца, поэтому проверка занимает O(log n).
+     */
+    private static class MatchesSet {
+
+        private final TreeMap<Integer, FoundPattern> matches = new TreeMap<>();
+        private boolean overflowed = false;
+
+        /**
+         * @return false, если вхождений уже слишком много и дальше искать не нужно
+         */
+        boolean addIfPossible(FoundPattern found) {
+            if (matches.size() >= MAX_MATCHES_PER_PACKET) {
+                overflowed = true;
+                return false;
+            }
+
+            final Map.Entry<Integer, FoundPattern> previous = matches.floorEntry(found.getEndPosition());
+            if (previous == null || previous.getValue().getEndPosition() < found.getStartPosition()) {
+                matches.put(found.getStartPosition(), found);
+            }
+
+            return true;
+        }
 
-    private static KMPByteSearcher compileByteKMP(Pattern pattern) {
-        return compiledByteKmps.computeIfAbsent(pattern.getValue(), val -> new KMPByteSearcher(Hex.decode(val)));
     }
 
 }
@@ -4,11 +4,9 @@ import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ru.serega6531.packmate.model.CtfService;
-import ru.serega6531.packmate.model.FoundPattern;
 import ru.serega6531.packmate.model.Pattern;
 import ru.serega6531.packmate.model.enums.PatternActionType;
 import ru.serega6531.packmate.model.enums.PatternDirectionType;
@@ -21,10 +19,9 @@ import ru.serega6531.packmate.repository.PatternRepository;
 
 import java.time.Instant;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 @Service
@@ -32,19 +29,22 @@ import java.util.concurrent.TimeUnit;
 public class PatternService {
 
     private final PatternRepository repository;
-    private final StreamService streamService;
+    private final LookbackService lookbackService;
     private final SubscriptionService subscriptionService;
     private final ModelMapper modelMapper;
 
-    private final Map<Integer, Pattern> patterns = new HashMap<>();
+    private final Map<Integer, Pattern> patterns = new ConcurrentHashMap<>();
+
+    // пересоздается целиком при любом изменении паттернов
+    private volatile PatternIndex index = PatternIndex.build(List.of());
 
     @Autowired
     public PatternService(PatternRepository repository,
-                          @Lazy StreamService streamService,
+                          LookbackService lookbackService,
                           SubscriptionService subscriptionService,
                           ModelMapper modelMapper) {
         this.repository = repository;
-        this.streamService = streamService;
+        this.lookbackService = lookbackService;
         this.subscriptionService = subscriptionService;
         this.modelMapper = modelMapper;
     }
@@ -52,6 +52,7 @@ public class PatternService {
     @PostConstruct
     public void init() {
         repository.findAll().forEach(p -> patterns.put(p.getId(), p));
+        rebuildIndex();
         log.info("Loaded {} patterns", patterns.size());
     }
 
@@ -63,18 +64,12 @@ public class PatternService {
         return patterns.values();
     }
 
-    public Set<FoundPattern> findMatches(byte[] bytes, CtfService service, PatternDirectionType directionType, PatternActionType actionType) {
-        final List<Pattern> list = patterns.values().stream()
-                .filter(pattern -> pattern.isEnabled() && !pattern.isDeleted())
-                .filter(p -> p.getServiceId() == null || p.getServiceId().equals(service.getPort()))
-                .filter(p -> p.getActionType() == actionType)
-                .filter(p -> p.getDirectionType() == directionType || p.getDirectionType() == PatternDirectionType.BOTH)
-                .toList();
-        return new PatternMatcher(bytes, list).findMatches();
+    public CompiledPatternGroup getGroup(CtfService service, PatternDirectionType directionType, PatternActionType actionType) {
+        return index.get(service.getPort(), directionType, actionType);
     }
 
-    public Set<FoundPattern> matchOne(byte[] bytes, Pattern pattern) {
-        return new PatternMatcher(bytes, List.of(pattern)).findMatches();
+    private synchronized void rebuildIndex() {
+        index = PatternIndex.build(patterns.values());
     }
 
     public void enable(int id, boolean enabled) {
@@ -83,6 +78,7 @@ public class PatternService {
             pattern.setEnabled(enabled);
             final Pattern saved = repository.save(pattern);
             patterns.put(id, saved);
+            rebuildIndex();
 
             if (enabled) {
                 log.info("Enabled pattern '{}' with value '{}'", pattern.getName(), pattern.getValue());
@@ -100,6 +96,8 @@ public class PatternService {
             pattern.setDeleted(true);
             final Pattern saved = repository.save(pattern);
             patterns.put(id, saved);
+            rebuildIndex();
+            CompiledPatternCache.evict(id);
 
             log.info("Deleted pattern '{}' with value '{}'", pattern.getName(), pattern.getValue());
             subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.SAVE_PATTERN, toDto(saved)));
@@ -123,6 +121,7 @@ public class PatternService {
         Pattern pattern = repository.findById(id).orElseThrow();
 
         modelMapper.map(dto, pattern);
+        CompiledPatternCache.evict(id);
 
         Pattern saved = save(pattern);
         return toDto(saved);
@@ -130,13 +129,14 @@ public class PatternService {
 
     private Pattern save(Pattern pattern) {
         try {
-            PatternMatcher.compilePattern(pattern);
+            CompiledPatternCache.validate(pattern);
         } catch (Exception e) {
             throw new IllegalArgumentException(e.getMessage());
         }
 
         final Pattern saved = repository.save(pattern);
         patterns.put(saved.getId(), saved);
+        rebuildIndex();
 
         log.info("Added new pattern '{}' with value '{}'", pattern.getName(), pattern.getValue());
         subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.SAVE_PATTERN, toDto(saved)));
@@ -155,7 +155,7 @@ public class PatternService {
 
             log.info("Scanning for pattern '{}' between {} and {}", pattern.getName(),
                     Instant.ofEpochMilli(start), Instant.ofEpochMilli(end));
-            streamService.processLookbackPattern(pattern, start, end);
+            lookbackService.lookBack(pattern, start, end);
         }
     }
 
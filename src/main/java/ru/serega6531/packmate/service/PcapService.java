@@ -5,12 +5,15 @@ import org.pcap4j.core.PcapNativeException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import ru.serega6531.packmate.model.enums.SubscriptionMessageType;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
 import ru.serega6531.packmate.model.pojo.ServiceDto;
 import ru.serega6531.packmate.model.pojo.SubscriptionMessage;
 import ru.serega6531.packmate.pcap.NoOpPcapWorker;
 import ru.serega6531.packmate.pcap.PcapWorker;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.stream.Collectors;
 
 @Service
@@ -21,11 +24,13 @@ public class PcapService {
 
     private final SubscriptionService subscriptionService;
     private final PcapWorker worker;
+    private final IpNetworkSet localNetworks;
 
     @Autowired
-    public PcapService(SubscriptionService subscriptionService, PcapWorker worker) {
+    public PcapService(SubscriptionService subscriptionService, PcapWorker worker, IpNetworkSet localNetworks) {
         this.subscriptionService = subscriptionService;
         this.worker = worker;
+        this.localNetworks = localNetworks;
     }
 
     public boolean isStarted() {
@@ -40,19 +45,28 @@ public class PcapService {
         }
     }
 
+    /**
+     * Фильтр пропускает только пакеты сервисов, идущие к вулнбоксам или от них,
+     * так что транзитный трафик отбрасывается еще в ядре
+     */
     public void updateFilter(Collection<ServiceDto> services) {
-        String filter;
+        String filter = "(tcp or udp)";
 
-        if (services.isEmpty()) {
-            filter = "tcp or udp";
-        } else {
+        if (!services.isEmpty()) {
             final String ports = services.stream()
                     .map(ServiceDto::getPort)
                     .map(p -> "port " + p)
                     .collect(Collectors.joining(" or "));
 
-            final String format = "(tcp or udp) and (%s)";
-            filter = String.format(format, ports);
+            filter += " and (" + ports + ")";
+        }
+
+        if (!localNetworks.isEmpty()) {
+            final String hosts = localNetworks.getDefinitions().stream()
+                    .map(network -> (network.contains("/") ? "net " : "host ") + network)
+                    .collect(Collectors.joining(" or "));
+
+            filter += " and (" + hosts + ")";
         }
 
         log.debug("New filter: " + filter);
@@ -64,4 +78,8 @@ public class PcapService {
         return worker.getExecutorState();
     }
 
+    public List<CaptureStatsDto> getCaptureStats() {
+        return worker.getCaptureStats();
+    }
+
 }
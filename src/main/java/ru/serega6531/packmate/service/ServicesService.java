@@ -2,12 +2,12 @@ package ru.serega6531.packmate.service;
 
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import ru.serega6531.packmate.properties.PackmateProperties;
 import ru.serega6531.packmate.model.CtfService;
 import ru.serega6531.packmate.model.enums.SubscriptionMessageType;
 import ru.serega6531.packmate.model.pojo.ServiceCreateDto;
@@ -15,6 +15,7 @@ import ru.serega6531.packmate.model.pojo.ServiceDto;
 import ru.serega6531.packmate.model.pojo.ServiceUpdateDto;
 import ru.serega6531.packmate.model.pojo.SubscriptionMessage;
 import ru.serega6531.packmate.repository.ServiceRepository;
+import ru.serega6531.packmate.utils.IpNetworkSet;
 
 import java.net.InetAddress;
 import java.util.HashMap;
@@ -30,7 +31,7 @@ public class ServicesService {
     private final SubscriptionService subscriptionService;
     private final PcapService pcapService;
 
-    private final InetAddress localIp;
+    private final IpNetworkSet localNetworks;
 
     private final Map<Integer, CtfService> services = new HashMap<>();
     private final ModelMapper modelMapper;
@@ -40,12 +41,12 @@ public class ServicesService {
                            SubscriptionService subscriptionService,
                            @Lazy PcapService pcapService,
                            ModelMapper modelMapper,
-                           PackmateProperties properties) {
+                           IpNetworkSet localNetworks) {
         this.repository = repository;
         this.subscriptionService = subscriptionService;
         this.pcapService = pcapService;
         this.modelMapper = modelMapper;
-        this.localIp = properties.localIp();
+        this.localNetworks = localNetworks;
     }
 
     @PostConstruct
@@ -59,17 +60,42 @@ public class ServicesService {
     }
 
     public Optional<CtfService> findService(InetAddress firstIp, int firstPort, InetAddress secondIp, int secondPort) {
-        if (firstIp.equals(localIp)) {
-            return findByPort(firstPort);
-        } else if (secondIp.equals(localIp)) {
-            return findByPort(secondPort);
+        return Optional.ofNullable(findService(localNetworks.contains(firstIp), firstPort,
+                localNetworks.contains(secondIp), secondPort));
+    }
+
+    /**
+     * Сервис, которому принадлежит пакет или стрим.
+     * Если локальны оба конца (соединение между вулнбоксами или внутри сети команды), у клиента эфемерный порт,
+     * поэтому сначала проверяется порт получателя, а затем порт отправителя.
+     * @return сервис или null, если ни на одном локальном конце сервиса нет
+     */
+    @Nullable
+    public CtfService findService(boolean sourceIsLocal, int sourcePort, boolean destIsLocal, int destPort) {
+        if (destIsLocal) {
+            final CtfService service = services.get(destPort);
+            if (service != null) {
+                return service;
+            }
         }
 
-        return Optional.empty();
+        return sourceIsLocal ? services.get(sourcePort) : null;
     }
 
-    private Optional<CtfService> findByPort(int port) {
-        return Optional.ofNullable(services.get(port));
+    /**
+     * Если локальны оба адреса, выбирается второй, когда на его порту есть сервис, как в findService
+     * @return адрес вулнбокса, на котором работает сервис соединения, или null, если ни один из адресов не локальный
+     */
+    @Nullable
+    public InetAddress findLocalIp(InetAddress firstIp, InetAddress secondIp, int secondPort) {
+        final boolean firstIsLocal = localNetworks.contains(firstIp);
+        final boolean secondIsLocal = localNetworks.contains(secondIp);
+
+        if (secondIsLocal && (!firstIsLocal || services.containsKey(secondPort))) {
+            return secondIp;
+        }
+
+        return firstIsLocal ? firstIp : null;
     }
 
     public List<ServiceDto> findAll() {
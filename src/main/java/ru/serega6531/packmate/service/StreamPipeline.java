@@ -0,0 +1,291 @@
+package ru.serega6531.packmate.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.model.Stream;
+import ru.serega6531.packmate.model.pojo.UnfinishedStream;
+import ru.serega6531.packmate.pcap.SpilledPayloads;
+import ru.serega6531.packmate.properties.PackmateProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Конвейер сохранения завершенных стримов.
+ * Оптимизация и поиск паттернов выполняются в пуле обработчиков, запись в БД - в отдельном потоке
+ * пачками по несколько стримов в одной транзакции.
+ * Очереди обоих этапов ограничены: если они заполнены, отправляющий поток ждет освобождения места.
+ * Стримы, вытесненные на диск, читаются обратно, обрабатываются и сохраняются по одному, минуя очередь записи,
+ * чтобы несколько огромных стримов не оказались в памяти одновременно.
+ */
+@Service
+@Slf4j
+public class StreamPipeline {
+
+    private final StreamService streamService;
+
+    private final ThreadPoolExecutor processingExecutor;
+    private final ExecutorService persistenceExecutor;
+    private final BlockingQueue<Stream> saveQueue;
+
+    private final int batchSize;
+    private final long batchDelayNanos;
+    private volatile boolean stopped = false;
+
+    private final Semaphore spilledProcessing = new Semaphore(1);
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+
+    @Autowired
+    public StreamPipeline(StreamService streamService, PackmateProperties properties) {
+        this.streamService = streamService;
+
+        int workers = Math.max(1, properties.processing().workers());
+        int queueSize = Math.max(1, properties.processing().queueSize());
+        this.batchSize = Math.max(1, properties.processing().saveBatchSize());
+        this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(properties.processing().saveBatchDelay());
+
+        BasicThreadFactory processingFactory = new BasicThreadFactory.Builder()
+                .namingPattern("stream-processor-%d").build();
+        processingExecutor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), processingFactory, this::waitForSpace);
+
+        BasicThreadFactory persistenceFactory = new BasicThreadFactory.Builder()
+                .namingPattern("stream-saver").build();
+        persistenceExecutor = Executors.newSingleThreadExecutor(persistenceFactory);
+        saveQueue = new ArrayBlockingQueue<>(queueSize);
+
+        persistenceExecutor.execute(this::writeBatches);
+    }
+
+    public void submit(UnfinishedStream unfinishedStream, List<Packet> packets) {
+        submit(unfinishedStream, packets, null);
+    }
+
+    /**
+     * Передать завершенный стрим на обработку. Блокируется, если очередь обработки заполнена.
+     * Список пакетов после вызова принадлежит конвейеру.
+     * @param spilled пакеты, содержимое которых вытеснено на диск, или null
+     */
+    public void submit(UnfinishedStream unfinishedStream, List<Packet> packets, @Nullable SpilledPayloads spilled) {
+        inFlight.incrementAndGet();
+        submitted.increment();
+
+        try {
+            processingExecutor.execute(() -> process(unfinishedStream, packets, spilled));
+        } catch (RejectedExecutionException e) {
+            if (spilled != null) {
+                spilled.release();
+            }
+            finish(failed);
+            log.warn("Stream was not processed: {}", e.getMessage());
+        }
+    }
+
+    private void process(UnfinishedStream unfinishedStream, List<Packet> packets, @Nullable SpilledPayloads spilled) {
+        if (spilled != null) {
+            processSpilled(unfinishedStream, packets, spilled);
+            return;
+        }
+
+        final Stream stream;
+
+        try {
+            stream = streamService.processNewStream(unfinishedStream, packets);
+        } catch (Exception e) {
+            log.error("Error processing stream", e);
+            finish(failed);
+            return;
+        }
+
+        if (stream == null) {
+            finish(skipped);
+            return;
+        }
+
+        if (!saveQueue.offer(stream)) {
+            waits.increment();
+
+            try {
+                saveQueue.put(stream);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finish(failed);
+            }
+        }
+    }
+
+    /**
+     * Вытесненный стрим сохраняется сразу из потока обработчика: пока он не записан,
+     * следующий вытесненный стрим не читается с диска
+     */
+    private void processSpilled(UnfinishedStream unfinishedStream, List<Packet> packets, SpilledPayloads spilled) {
+        try {
+            spilledProcessing.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            spilled.release();
+            finish(failed);
+            return;
+        }
+
+        try {
+            final Stream stream;
+
+            try {
+                log.info("Restoring spilled stream: {}", spilled);
+                spilled.restore();
+                stream = streamService.processNewStream(unfinishedStream, packets);
+            } catch (Exception e) {
+                log.error("Error processing stream", e);
+                finish(failed);
+                return;
+            }
+
+            if (stream == null) {
+                finish(skipped);
+                return;
+            }
+
+            writeBatch(List.of(stream));
+        } finally {
+            spilledProcessing.release();
+        }
+    }
+
+    /**
+     * Цикл потока записи: собирает до batchSize стримов, ожидая не дольше batchDelay после первого
+     */
+    private void writeBatches() {
+        List<Stream> batch = new ArrayList<>(batchSize);
+
+        while (!stopped || !saveQueue.isEmpty()) {
+            try {
+                Stream first = saveQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + batchDelayNanos;
+
+                while (batch.size() < batchSize) {
+                    saveQueue.drainTo(batch, batchSize - batch.size());
+
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+
+                    Stream next = saveQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Stream> batch) {
+        try {
+            List<Stream> savedStreams = streamService.saveStreams(batch);
+            batch.forEach(s -> finish(saved));
+            streamService.broadcastNewStreams(savedStreams);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                log.error("Error saving stream", e);
+                finish(failed);
+                return;
+            }
+
+            // сохраняем по одному, чтобы не потерять всю пачку из-за одного стрима
+            log.warn("Error saving batch of {} streams, saving them one by one", batch.size(), e);
+            for (Stream stream : batch) {
+                writeBatch(List.of(stream));
+            }
+        }
+    }
+
+    private void finish(LongAdder counter) {
+        counter.increment();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Вместо отбрасывания задачи ждем, пока в очереди освободится место
+     */
+    private void waitForSpace(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Stream pipeline is stopped");
+        }
+
+        waits.increment();
+
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    /**
+     * Дождаться, пока все переданные стримы будут сохранены или отброшены
+     */
+    public void awaitCompletion() throws InterruptedException {
+        while (inFlight.get() > 0) {
+            //noinspection BusyWait
+            Thread.sleep(100);
+        }
+    }
+
+    public String getState() {
+        return String.format("in flight %d, processing queue %d, saving queue %d, " +
+                        "submitted %d, saved %d, skipped %d, failed %d, waits for space %d",
+                inFlight.get(), processingExecutor.getQueue().size(), saveQueue.size(),
+                submitted.sum(), saved.sum(), skipped.sum(), failed.sum(), waits.sum());
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        processingExecutor.shutdown();
+        if (!processingExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.warn("Stream processors did not finish in time");
+        }
+
+        stopped = true;
+        persistenceExecutor.shutdown();
+        if (!persistenceExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.warn("Stream saver did not finish in time");
+        }
+    }
+
+}
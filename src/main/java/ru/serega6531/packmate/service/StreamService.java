@@ -8,9 +8,7 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import ru.serega6531.packmate.properties.PackmateProperties;
 import ru.serega6531.packmate.model.CtfService;
@@ -30,6 +28,7 @@ import ru.serega6531.packmate.repository.StreamRepository;
 import ru.serega6531.packmate.service.optimization.RsaKeysHolder;
 import ru.serega6531.packmate.service.optimization.StreamOptimizer;
 
+import java.net.InetAddress;
 import java.time.ZonedDateTime;
 import java.util.HashSet;
 import java.util.List;
@@ -49,6 +48,7 @@ public class StreamService {
     private final RsaKeysHolder keysHolder;
     private final ModelMapper modelMapper;
     private final boolean ignoreEmptyPackets;
+    private final int maxDecodedSize;
 
     private final java.util.regex.Pattern userAgentPattern = java.util.regex.Pattern.compile("User-Agent: (.+)\\r\\n");
 
@@ -69,13 +69,19 @@ public class StreamService {
         this.keysHolder = keysHolder;
         this.modelMapper = modelMapper;
         this.ignoreEmptyPackets = properties.ignoreEmptyPackets();
+
+        final int decodedLimit = properties.processing().decompressedSizeLimit();
+        this.maxDecodedSize = decodedLimit > 0
+                ? (int) Math.min(decodedLimit * 1024L * 1024, Integer.MAX_VALUE)
+                : Integer.MAX_VALUE;
     }
 
     /**
-     * @return был ли сохранен стрим
+     * Оптимизирует стрим и ищет в нем паттерны. Не обращается к БД, может выполняться в нескольких потоках.
+     * @return стрим, готовый к сохранению, или null, если стрим сохранять не нужно
      */
-    @Transactional(propagation = Propagation.NEVER)
-    public boolean saveNewStream(UnfinishedStream unfinishedStream, List<Packet> packets) {
+    @Nullable
+    public Stream processNewStream(UnfinishedStream unfinishedStream, List<Packet> packets) {
         final var serviceOptional = servicesService.findService(
                 unfinishedStream.firstIp(),
                 unfinishedStream.firstPort(),
@@ -86,7 +92,7 @@ public class StreamService {
         if (serviceOptional.isEmpty()) {
             log.warn("Failed to save the stream: service at port {} or {} does not exist",
                     unfinishedStream.firstPort(), unfinishedStream.secondPort());
-            return false;
+            return null;
         }
         CtfService service = serviceOptional.get();
 
@@ -95,7 +101,7 @@ public class StreamService {
 
             if (packets.isEmpty()) {
                 log.debug("Stream consists only of empty packets and will not be saved");
-                return false;
+                return null;
             }
         }
 
@@ -104,11 +110,12 @@ public class StreamService {
         int packetsSize = packets.stream().mapToInt(p -> p.getContent().length).sum();
         int packetsCount = packets.size();
 
-        List<Packet> optimizedPackets = new StreamOptimizer(keysHolder, service, packets).optimizeStream();
+        List<Packet> optimizedPackets = new StreamOptimizer(keysHolder, service, maxDecodedSize, packets).optimizeStream();
 
-        if (isStreamIgnored(optimizedPackets, service)) {
+        StreamMatches matches = matchPackets(optimizedPackets, service);
+        if (matches == null) {
             log.debug("New stream is ignored");
-            return false;
+            return null;
         }
 
         Optional<Packet> firstIncoming = packets.stream()
@@ -122,58 +129,43 @@ public class StreamService {
         stream.setEndTimestamp(packets.get(packets.size() - 1).getTimestamp());
         stream.setService(service.getPort());
 
-        String userAgentHash = getUserAgentHash(optimizedPackets);
-        stream.setUserAgentHash(userAgentHash);
+        final InetAddress localIp = servicesService.findLocalIp(unfinishedStream.firstIp(),
+                unfinishedStream.secondIp(), unfinishedStream.secondPort());
+        if (localIp != null) {
+            stream.setLocalIp(localIp.getHostAddress());
+        }
+
+        if (matches.userAgent() != null) {
+            stream.setUserAgentHash(calculateUserAgentHash(matches.userAgent()));
+        }
 
         stream.setSizeBytes(packetsSize);
         stream.setPacketsCount(packetsCount);
 
-        Set<Pattern> foundPatterns = matchPatterns(optimizedPackets, service);
-        stream.setFoundPatterns(foundPatterns);
+        stream.setFoundPatterns(matches.foundPatterns());
         stream.setPackets(optimizedPackets);
 
         for (Packet packet : optimizedPackets) {
             packet.setStream(stream);
         }
 
-        Stream savedStream = save(stream);
-
-        subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.NEW_STREAM, streamToDto(savedStream)));
-        return true;
+        return stream;
     }
 
-    @Async
+    /**
+     * Сохраняет стримы в одной транзакции, чтобы вставки пакетов и найденных паттернов попадали в общие jdbc батчи.
+     * Уведомления о новых стримах нужно отправлять после возврата из метода, когда транзакция уже завершена.
+     */
     @Transactional
-    public void processLookbackPattern(Pattern pattern, long start, long end) {
-        List<Stream> streams = findAllBetweenTimestamps(start, end);
-
-        for (Stream stream : streams) {
-            boolean found = matchPattern(stream.getPackets(), pattern);
-            if (found) {
-                stream.getFoundPatterns().add(pattern);
-                repository.save(stream);
-            }
-        }
-
-        log.info("Finished lookback for pattern '{}'", pattern.getName());
-        subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.FINISH_LOOKBACK, pattern.getId()));
+    public List<Stream> saveStreams(List<Stream> streams) {
+        List<Stream> saved = repository.saveAll(streams);
+        log.debug("Saved {} streams", saved.size());
+        return saved;
     }
 
-    private String getUserAgentHash(List<Packet> packets) {
-        String ua = null;
-        for (Packet packet : packets) {
-            String content = packet.getContentString();
-            final Matcher matcher = userAgentPattern.matcher(content);
-            if (matcher.find()) {
-                ua = matcher.group(1);
-                break;
-            }
-        }
-
-        if (ua != null) {
-            return calculateUserAgentHash(ua);
-        } else {
-            return null;
+    public void broadcastNewStreams(List<Stream> streams) {
+        for (Stream stream : streams) {
+            subscriptionService.broadcast(new SubscriptionMessage(SubscriptionMessageType.NEW_STREAM, streamToDto(stream)));
         }
     }
 
@@ -188,13 +180,26 @@ public class StreamService {
         return "" + alphabet[hash % l] + alphabet[(hash / l) % l] + alphabet[(hash / (l * l)) % l];
     }
 
-    private Set<Pattern> matchPatterns(List<Packet> packets, CtfService service) {
+    /**
+     * Один проход по пакетам стрима: для каждого пакета сначала проверяются игнорирующие паттерны,
+     * затем ищутся обычные паттерны и User-Agent. Содержимое пакета декодируется в строку не больше одного раза.
+     * @return найденные паттерны и User-Agent или null, если стрим нужно игнорировать
+     */
+    @Nullable
+    private StreamMatches matchPackets(List<Packet> packets, CtfService service) {
         Set<Pattern> foundPatterns = new HashSet<>();
+        String userAgent = null;
 
         for (Packet packet : packets) {
             PatternDirectionType direction = packet.isIncoming() ? PatternDirectionType.INPUT : PatternDirectionType.OUTPUT;
-            final Set<FoundPattern> matches = patternService.findMatches(packet.getContent(), service,
-                    direction, PatternActionType.FIND);
+            PatternMatcher patternMatcher = new PatternMatcher(packet.getContent());
+
+            if (patternMatcher.matchesAny(patternService.getGroup(service, direction, PatternActionType.IGNORE))) {
+                return null;
+            }
+
+            final Set<FoundPattern> matches = patternMatcher.findMatches(
+                    patternService.getGroup(service, direction, PatternActionType.FIND));
 
             packet.setMatches(matches);
             matches.forEach(m -> m.setPacket(packet));
@@ -203,57 +208,16 @@ public class StreamService {
                     .map(FoundPattern::getPatternId)
                     .map(patternService::find)
                     .toList());
-        }
-
-        return foundPatterns;
-    }
 
-    private boolean matchPattern(List<Packet> packets, Pattern pattern) {
-        boolean matched = false;
-
-        for (Packet packet : packets) {
-            PatternDirectionType direction = packet.isIncoming() ? PatternDirectionType.INPUT : PatternDirectionType.OUTPUT;
-
-            if (pattern.getDirectionType() != PatternDirectionType.BOTH && pattern.getDirectionType() != direction) {
-                continue;
-            }
-
-            final Set<FoundPattern> matches = patternService.matchOne(packet.getContent(), pattern);
-
-            if (!matches.isEmpty()) {
-                packet.getMatches().addAll(matches);
-                matches.forEach(m -> m.setPacket(packet));
-
-                matched = true;
-            }
-        }
-
-        return matched;
-    }
-
-    private boolean isStreamIgnored(List<Packet> packets, CtfService service) {
-        for (Packet packet : packets) {
-            PatternDirectionType direction = packet.isIncoming() ? PatternDirectionType.INPUT : PatternDirectionType.OUTPUT;
-            final Set<FoundPattern> matches = patternService.findMatches(packet.getContent(), service,
-                    direction, PatternActionType.IGNORE);
-            if (!matches.isEmpty()) {
-                return true;
+            if (userAgent == null) {
+                final Matcher matcher = userAgentPattern.matcher(patternMatcher.getContent());
+                if (matcher.find()) {
+                    userAgent = matcher.group(1);
+                }
             }
         }
 
-        return false;
-    }
-
-    private Stream save(Stream stream) {
-        Stream saved;
-        if (stream.getId() == null) {
-            saved = repository.save(stream);
-            log.debug("Saved stream with id {}", saved.getId());
-        } else {
-            saved = repository.save(stream);
-        }
-
-        return saved;
+        return new StreamMatches(foundPatterns, userAgent);
     }
 
     @Transactional
@@ -299,6 +263,10 @@ public class StreamService {
             spec = spec.and(streamPatternsContains(pagination.getPattern()));
         }
 
+        if (pagination.getLocalIp() != null) {
+            spec = spec.and(streamLocalIpEquals(pagination.getLocalIp()));
+        }
+
         return repository.findAll(spec, page)
                 .getContent()
                 .stream()
@@ -306,11 +274,6 @@ public class StreamService {
                 .toList();
     }
 
-     public List<Stream> findAllBetweenTimestamps(long start, long end) {
-         Specification<Stream> spec = streamTimestampBetween(start, end);
-         return repository.findAll(spec);
-     }
-
     public StreamDto streamToDto(Stream stream) {
         return modelMapper.map(stream, StreamDto.class);
     }
@@ -331,12 +294,15 @@ public class StreamService {
         return (root, query, cb) -> cb.lessThan(root.get("id"), id);
     }
 
-    private Specification<Stream> streamTimestampBetween(long start, long end) {
-        return (root, query, cb) -> cb.between(root.get("startTimestamp"), start, end);
-    }
-
     private Specification<Stream> streamPatternsContains(Pattern pattern) {
         return (root, query, cb) -> cb.isMember(pattern, root.get("foundPatterns"));
     }
 
+    private Specification<Stream> streamLocalIpEquals(String localIp) {
+        return (root, query, cb) -> cb.equal(root.get("localIp"), localIp);
+    }
+
+    private record StreamMatches(Set<Pattern> foundPatterns, @Nullable String userAgent) {
+    }
+
 }
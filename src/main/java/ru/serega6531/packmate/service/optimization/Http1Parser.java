@@ -0,0 +1,508 @@
+package ru.serega6531.packmate.service.optimization;
+
+import lombok.extern.slf4j.Slf4j;
+import org.brotli.dec.BrotliInputStream;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Разбор http/1.x сообщений прямо в массиве пакета.
+ * В одном пакете может быть несколько сообщений подряд (keep-alive, pipelining), последнее может быть неполным.
+ * Стартовая строка и заголовки не меняются; тело переписывается, только если оно передано по частям (chunked)
+ * или сжато. Если переписывать нечего, возвращается исходный массив.
+ */
+@Slf4j
+final class Http1Parser {
+
+    private static final byte[] HTTP_VERSION = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_ENCODING = "content-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    // размер распакованного тела по умолчанию, чтобы небольшой сжатый ответ не занял всю память
+    static final int DEFAULT_MAX_DECODED_SIZE = 8 * 1024 * 1024;
+
+    private final byte[] data;
+    private final boolean requests;
+    private final Queue<String> methods;
+    private final int maxDecodedSize;
+    private int position = 0;
+
+    // часть исходного массива до copied уже перенесена в out
+    private ByteArrayOutputStream out = null;
+    private int copied = 0;
+
+    private int messages = 0;
+    private boolean hasBody = false;
+
+    /**
+     * @param content  содержимое пакета после декодирования тел
+     * @param messages количество найденных сообщений
+     */
+    record Result(byte[] content, int messages, boolean hasBody) {}
+
+    private Http1Parser(byte[] data, boolean requests, Queue<String> methods, int maxDecodedSize) {
+        this.data = data;
+        this.requests = requests;
+        this.methods = methods;
+        this.maxDecodedSize = maxDecodedSize;
+    }
+
+    /**
+     * @param requests       ожидаются запросы, иначе ответы
+     * @param methods        методы запросов стрима, еще не получивших ответ. Разбор запросов добавляет их,
+     *                       разбор ответов забирает: у ответа на HEAD нет тела, даже если указан Content-Length
+     * @param maxDecodedSize сколько байт может занять тело после распаковки, остальное отбрасывается
+     * @return результат или null, если пакет не начинается с http сообщения
+     */
+    @Nullable
+    static Result parse(byte[] data, boolean requests, Queue<String> methods, int maxDecodedSize) {
+        Http1Parser parser = new Http1Parser(data, requests, methods, maxDecodedSize);
+
+        while (parser.position < data.length && parser.parseMessage()) {
+            parser.messages++;
+        }
+
+        if (parser.messages == 0) {
+            return null;
+        }
+
+        return new Result(parser.finish(), parser.messages, parser.hasBody);
+    }
+
+    /**
+     * @return false, если с текущей позиции не начинается http сообщение
+     */
+    private boolean parseMessage() {
+        int newline = indexOf((byte) '\n', position);
+        if (newline < 0) {
+            return false;
+        }
+
+        final int lineEnd = trimCr(position, newline);
+        final int status = requests ? (isRequestLine(position, lineEnd) ? 0 : -1) : parseStatusLine(position, lineEnd);
+        if (status < 0) {
+            return false;
+        }
+
+        String method = null;
+        if (requests) {
+            methods.add(ascii(position, indexOf((byte) ' ', position, lineEnd)));
+        } else if (status >= 200 || status == 101) {  // промежуточные ответы 1xx не завершают запрос
+            method = methods.poll();
+        }
+
+        long contentLength = -1;
+        boolean chunked = false;
+        String contentEncoding = null;
+
+        int pos = newline + 1;
+        while (true) {
+            newline = indexOf((byte) '\n', pos);
+            if (newline < 0) {  // заголовки обрываются, оставляем как есть
+                position = data.length;
+                return true;
+            }
+
+            final int end = trimCr(pos, newline);
+            if (end == pos) {
+                pos = newline + 1;
+                break;
+            }
+
+            final int colon = indexOf((byte) ':', pos, end);
+            if (colon > pos) {
+                final int valueStart = skipSpaces(colon + 1, end);
+                if (nameEquals(pos, colon, CONTENT_LENGTH)) {
+                    contentLength = parseLength(valueStart, end);
+                } else if (nameEquals(pos, colon, TRANSFER_ENCODING)) {
+                    chunked = ascii(valueStart, end).toLowerCase(Locale.ROOT).trim().endsWith("chunked");
+                } else if (nameEquals(pos, colon, CONTENT_ENCODING)) {
+                    contentEncoding = ascii(valueStart, end).toLowerCase(Locale.ROOT).trim();
+                }
+            }
+
+            pos = newline + 1;
+        }
+
+        final boolean noBody = !requests && (status / 100 == 1 || status == 204 || status == 304 || "HEAD".equals(method));
+        if (noBody) {
+            position = pos;
+            return true;
+        }
+
+        final int bodyStart = pos;
+        final int bodyEnd;
+        byte[] body = null;  // null, пока тело совпадает с исходными байтами
+
+        if (chunked) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream(data.length - bodyStart);
+            bodyEnd = readChunks(bodyStart, chunks);
+            body = chunks.toByteArray();
+        } else if (contentLength >= 0) {
+            bodyEnd = (int) Math.min(data.length, bodyStart + contentLength);
+        } else if (requests) {
+            bodyEnd = bodyStart;
+        } else {
+            bodyEnd = data.length;  // ответ без длины продолжается до закрытия соединения
+        }
+
+        if (bodyEnd > bodyStart) {
+            hasBody = true;
+        }
+
+        // запрос мог быть не перехвачен: тело, похожее на следующий ответ, скорее всего им и является
+        final boolean nextResponse = !requests && body == null && startsWith(bodyStart, bodyEnd, HTTP_VERSION);
+
+        if (contentEncoding != null && bodyEnd > bodyStart && !nextResponse) {
+            final byte[] decoded = body != null
+                    ? decodeContent(body, 0, body.length, contentEncoding, maxDecodedSize)
+                    : decodeContent(data, bodyStart, bodyEnd - bodyStart, contentEncoding, maxDecodedSize);
+            if (decoded != null) {
+                body = decoded;
+            }
+        }
+
+        if (body != null) {
+            replace(bodyStart, bodyEnd, body);
+        }
+
+        position = bodyEnd;
+        return true;
+    }
+
+    /**
+     * Собирает тело из частей. Если оно обрывается, берется все, что есть.
+     * @return позиция после тела и заключительных заголовков
+     */
+    private int readChunks(int pos, ByteArrayOutputStream chunks) {
+        while (pos < data.length) {
+            final int newline = indexOf((byte) '\n', pos);
+            if (newline < 0) {
+                break;
+            }
+
+            final long size = parseChunkSize(pos, trimCr(pos, newline));
+            if (size < 0) {  // не похоже на размер части, оставляем остаток как есть
+                break;
+            }
+
+            pos = newline + 1;
+
+            if (size == 0) {
+                return skipTrailers(pos);
+            }
+
+            final int available = (int) Math.min(size, data.length - pos);
+            chunks.write(data, pos, available);
+            pos += available;
+
+            if (pos < data.length && data[pos] == '\r') {
+                pos++;
+            }
+            if (pos < data.length && data[pos] == '\n') {
+                pos++;
+            }
+        }
+
+        chunks.write(data, pos, data.length - pos);
+        return data.length;
+    }
+
+    private int skipTrailers(int pos) {
+        while (pos < data.length) {
+            final int newline = indexOf((byte) '\n', pos);
+            if (newline < 0) {
+                return data.length;
+            }
+
+            final boolean empty = trimCr(pos, newline) == pos;
+            pos = newline + 1;
+            if (empty) {
+                break;
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Кодировки снимаются в обратном порядке
+     * @param maxDecodedSize после распаковки тело обрезается до этого размера
+     * @return декодированное тело или null, если кодировка не поддерживается или тело не удалось распаковать
+     */
+    @Nullable
+    static byte[] decodeContent(byte[] body, int offset, int length, String contentEncoding, int maxDecodedSize) {
+        final String[] encodings = contentEncoding.split(",");
+        byte[] result = null;
+
+        for (int i = encodings.length - 1; i >= 0; i--) {
+            final String encoding = encodings[i].trim();
+            if (encoding.isEmpty() || encoding.equals("identity")) {
+                continue;
+            }
+
+            final byte[] source = result != null ? result : body;
+            final int sourceOffset = result != null ? 0 : offset;
+            final int sourceLength = result != null ? result.length : length;
+            final InputStream input = new ByteArrayInputStream(source, sourceOffset, sourceLength);
+
+            try {
+                result = switch (encoding) {
+                    case "gzip", "x-gzip" -> readPartially(new GZIPInputStream(input), sourceLength, maxDecodedSize);
+                    case "deflate" -> readPartially(new InflaterInputStream(input,
+                            new Inflater(!hasZlibHeader(source, sourceOffset, sourceLength))), sourceLength, maxDecodedSize);
+                    case "br" -> readPartially(new BrotliInputStream(input), sourceLength, maxDecodedSize);
+                    default -> null;
+                };
+            } catch (IOException e) {
+                log.debug("Could not decode {} http body: {}", encoding, e.getMessage());
+                return null;
+            }
+
+            if (result == null) {
+                log.debug("Unknown http content encoding {}", encoding);
+                return null;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * deflate по стандарту передается в обертке zlib, но некоторые серверы отправляют его без нее
+     */
+    private static boolean hasZlibHeader(byte[] source, int offset, int length) {
+        if (length < 2) {
+            return false;
+        }
+
+        final int cmf = source[offset] & 0xFF;
+        final int flg = source[offset + 1] & 0xFF;
+        return (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * Читает поток до конца, но не больше limit байт. Если сжатые данные обрываются,
+     * возвращает то, что успело распаковаться.
+     */
+    private static byte[] readPartially(InputStream input, int sizeHint, int limit) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream((int) Math.min(limit, Math.max(256, sizeHint * 4L)));
+        final byte[] buffer = new byte[8192];
+
+        try (input) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                if (read > limit - os.size()) {
+                    os.write(buffer, 0, limit - os.size());
+                    log.debug("Decoded http body exceeds {} bytes and is truncated", limit);
+                    break;
+                }
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            if (os.size() == 0) {
+                throw e;
+            }
+        }
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Заменяет байты со start по end на replacement в итоговом массиве
+     */
+    private void replace(int start, int end, byte[] replacement) {
+        if (out == null) {
+            out = new ByteArrayOutputStream(data.length + replacement.length);
+        }
+
+        out.write(data, copied, start - copied);
+        out.write(replacement, 0, replacement.length);
+        copied = end;
+    }
+
+    private byte[] finish() {
+        if (out == null) {
+            return data;
+        }
+
+        out.write(data, copied, data.length - copied);
+        return out.toByteArray();
+    }
+
+    /**
+     * Метод, цель и версия: GET /path HTTP/1.1
+     */
+    private boolean isRequestLine(int start, int end) {
+        final int methodEnd = indexOf((byte) ' ', start, end);
+        if (methodEnd <= start) {
+            return false;
+        }
+
+        for (int i = start; i < methodEnd; i++) {
+            final byte b = data[i];
+            if ((b < 'A' || b > 'Z') && b != '-' && b != '_') {
+                return false;
+            }
+        }
+
+        int versionStart = end;
+        while (versionStart > methodEnd && data[versionStart - 1] != ' ') {
+            versionStart--;
+        }
+
+        return versionStart > methodEnd + 1 && startsWith(versionStart, end, HTTP_VERSION);
+    }
+
+    /**
+     * @return код ответа или -1, если это не строка статуса
+     */
+    private int parseStatusLine(int start, int end) {
+        if (!startsWith(start, end, HTTP_VERSION)) {
+            return -1;
+        }
+
+        final int space = indexOf((byte) ' ', start, end);
+        if (space < 0 || space + 4 > end) {
+            return -1;
+        }
+
+        int status = 0;
+        for (int i = space + 1; i < space + 4; i++) {
+            final byte b = data[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            status = status * 10 + (b - '0');
+        }
+
+        return status;
+    }
+
+    /**
+     * @return длина или -1, если значение некорректно
+     */
+    private long parseLength(int start, int end) {
+        end = trimSpaces(start, end);
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            final byte b = data[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            result = result * 10 + (b - '0');
+        }
+
+        return result;
+    }
+
+    /**
+     * Размер части в шестнадцатеричном виде, после него могут идти расширения через ';'
+     * @return размер или -1, если строка некорректна
+     */
+    private long parseChunkSize(int start, int end) {
+        final int extensions = indexOf((byte) ';', start, end);
+        end = trimSpaces(start, extensions < 0 ? end : extensions);
+        if (start == end || end - start > 8) {
+            return -1;
+        }
+
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = Character.digit(data[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            result = result * 16 + digit;
+        }
+
+        return result;
+    }
+
+    private boolean nameEquals(int start, int end, byte[] lowerCaseName) {
+        end = trimSpaces(start, end);
+        if (end - start != lowerCaseName.length) {
+            return false;
+        }
+
+        for (int i = 0; i < lowerCaseName.length; i++) {
+            byte b = data[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseName[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String ascii(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private int indexOf(byte value, int from) {
+        return indexOf(value, from, data.length);
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Конец строки без '\r' перед переводом строки
+     */
+    private int trimCr(int start, int newline) {
+        return newline > start && data[newline - 1] == '\r' ? newline - 1 : newline;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimSpaces(int start, int end) {
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+}
@@ -0,0 +1,405 @@
+package ru.serega6531.packmate.service.optimization;
+
+import com.twitter.hpack.Decoder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.utils.BytesUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Разбор http/2 без шифрования (h2c, в том числе gRPC).
+ * Кадры каждого направления собираются по идентификаторам стримов, заголовки распаковываются HPACK
+ * с отдельной динамической таблицей на каждое направление соединения.
+ * Каждый запрос и ответ превращается в один пакет в виде, похожем на http/1: стартовая строка, заголовки, тело.
+ */
+@Slf4j
+public class Http2Parser {
+
+    private static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING_PROTOCOLS = "HTTP/1.1 101".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP1_HEADERS_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int MAX_FRAME_LENGTH = (1 << 24) - 1;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_TABLE_SIZE = 64 * 1024;
+
+    private final List<Packet> packets;
+    private final int maxDecodedSize;
+
+    @Getter
+    private boolean parsed = false;
+    private List<Packet> parsedPackets;
+
+    private final List<Message> messages = new ArrayList<>();
+
+    public Http2Parser(List<Packet> packets) {
+        this(packets, Http1Parser.DEFAULT_MAX_DECODED_SIZE);
+    }
+
+    /**
+     * @param maxDecodedSize сколько байт может занять тело после распаковки
+     */
+    public Http2Parser(List<Packet> packets, int maxDecodedSize) {
+        this.packets = packets;
+        this.maxDecodedSize = maxDecodedSize;
+        detectHttp2();
+    }
+
+    private void detectHttp2() {
+        final Side client = new Side(true);
+        final Side server = new Side(false);
+
+        final int prefaceStart = BytesUtils.indexOf(client.data, CLIENT_PREFACE);
+        if (prefaceStart < 0) {
+            return;
+        }
+
+        int serverStart = 0;
+        if (prefaceStart > 0) {
+            // h2c через Upgrade: запрос http/1.1 становится первым стримом, сервер отвечает 101 и переходит на кадры
+            if (!BytesUtils.startsWith(server.data, SWITCHING_PROTOCOLS)) {
+                return;
+            }
+
+            serverStart = BytesUtils.indexOf(server.data, HTTP1_HEADERS_END) + HTTP1_HEADERS_END.length;
+            if (serverStart < HTTP1_HEADERS_END.length) {
+                return;
+            }
+
+            addRaw(client, 0, prefaceStart);
+            addRaw(server, 0, serverStart);
+        }
+
+        try {
+            parseFrames(client, prefaceStart + CLIENT_PREFACE.length);
+            parseFrames(server, serverStart);
+        } catch (IOException | IllegalStateException e) {
+            log.warn("Could not parse http/2 stream: {}", e.getMessage());
+            return;
+        }
+
+        messages.sort(Comparator.comparingInt((Message m) -> m.firstPacket).thenComparingInt(m -> m.order));
+        parsedPackets = new ArrayList<>(messages.size());
+
+        for (Message message : messages) {
+            final byte[] content = message.raw != null ? message.raw : message.render(maxDecodedSize);
+            parsedPackets.add(packets.get(message.firstPacket).toBuilder()
+                    .incoming(message.incoming)
+                    .content(content)
+                    .hasHttpBody(message.body.size() > 0)
+                    .build());
+        }
+
+        parsed = true;
+    }
+
+    private void addRaw(Side side, int start, int end) {
+        final Message message = new Message(side.incoming, false, side.packetAt(start), messages.size());
+        message.raw = Arrays.copyOfRange(side.data, start, end);
+        messages.add(message);
+    }
+
+    /**
+     * @throws IllegalStateException если поток кадров некорректен
+     */
+    private void parseFrames(Side side, int pos) throws IOException {
+        final byte[] data = side.data;
+        final Decoder decoder = new Decoder(MAX_HEADER_SIZE, MAX_HEADER_TABLE_SIZE);
+        final Map<Integer, Message> streams = new HashMap<>();
+
+        // блок заголовков может продолжаться в кадрах CONTINUATION
+        ByteArrayOutputStream headerBlock = null;
+        Message headerTarget = null;
+        boolean headerEndsStream = false;
+
+        while (pos + FRAME_HEADER_LENGTH <= data.length) {
+            final int length = ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+            final int type = data[pos + 3] & 0xFF;
+            final int flags = data[pos + 4] & 0xFF;
+            final int streamId = readInt(data, pos + 5) & 0x7FFF_FFFF;
+
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IllegalStateException("Frame is too long");
+            }
+
+            final int frameStart = pos;
+            int payloadStart = pos + FRAME_HEADER_LENGTH;
+            int payloadEnd = payloadStart + length;
+            if (payloadEnd > data.length) {
+                break;  // последний кадр обрывается
+            }
+            pos = payloadEnd;
+
+            if (headerBlock != null && type != TYPE_CONTINUATION) {
+                throw new IllegalStateException("Header block is not finished");
+            }
+
+            if (type == TYPE_DATA || type == TYPE_HEADERS || type == TYPE_PUSH_PROMISE) {
+                if ((flags & FLAG_PADDED) != 0) {
+                    payloadEnd -= data[payloadStart] & 0xFF;
+                    payloadStart++;
+                }
+                if (payloadEnd < payloadStart) {
+                    throw new IllegalStateException("Invalid padding");
+                }
+            }
+
+            switch (type) {
+                case TYPE_DATA -> {
+                    final Message message = getMessage(streams, side, streamId, side.incoming, frameStart);
+                    message.body.write(data, payloadStart, payloadEnd - payloadStart);
+                    if ((flags & FLAG_END_STREAM) != 0) {
+                        streams.remove(streamId);
+                    }
+                }
+                case TYPE_HEADERS, TYPE_PUSH_PROMISE -> {
+                    if (type == TYPE_HEADERS) {
+                        if ((flags & FLAG_PRIORITY) != 0) {
+                            payloadStart += 5;
+                        }
+                        headerTarget = getMessage(streams, side, streamId, side.incoming, frameStart);
+                        headerEndsStream = (flags & FLAG_END_STREAM) != 0;
+                    } else {
+                        // обещанный сервером запрос
+                        if (payloadEnd - payloadStart < 4) {
+                            throw new IllegalStateException("Invalid push promise");
+                        }
+                        final int promisedId = readInt(data, payloadStart) & 0x7FFF_FFFF;
+                        payloadStart += 4;
+                        headerTarget = getMessage(streams, side, promisedId, true, frameStart);
+                        headerEndsStream = true;
+                    }
+
+                    if (payloadEnd < payloadStart) {
+                        throw new IllegalStateException("Invalid header frame");
+                    }
+
+                    headerBlock = new ByteArrayOutputStream(payloadEnd - payloadStart);
+                    headerBlock.write(data, payloadStart, payloadEnd - payloadStart);
+                }
+                case TYPE_CONTINUATION -> {
+                    if (headerBlock == null) {
+                        throw new IllegalStateException("Unexpected continuation");
+                    }
+                    headerBlock.write(data, payloadStart, payloadEnd - payloadStart);
+                }
+                case TYPE_RST_STREAM -> streams.remove(streamId);
+                default -> {
+                    // SETTINGS, PING, WINDOW_UPDATE и прочие служебные кадры в стрим не попадают
+                }
+            }
+
+            if (headerBlock != null && (type == TYPE_HEADERS || type == TYPE_PUSH_PROMISE || type == TYPE_CONTINUATION)
+                    && (flags & FLAG_END_HEADERS) != 0) {
+                decodeHeaders(decoder, headerBlock.toByteArray(), headerTarget);
+                if (headerEndsStream) {
+                    streams.remove(headerTarget.streamId);
+                }
+                headerBlock = null;
+            }
+        }
+    }
+
+    private Message getMessage(Map<Integer, Message> streams, Side side, int streamId, boolean request, int offset) {
+        if (streamId == 0) {
+            throw new IllegalStateException("Stream frame on the connection stream");
+        }
+
+        return streams.computeIfAbsent(streamId, id -> {
+            Message message = new Message(side.incoming, request, side.packetAt(offset), messages.size());
+            message.streamId = id;
+            messages.add(message);
+            return message;
+        });
+    }
+
+    /**
+     * Заголовки после тела - трейлеры, они выводятся после него
+     */
+    private void decodeHeaders(Decoder decoder, byte[] block, Message message) throws IOException {
+        final List<String[]> target = message.headers.isEmpty() || message.body.size() == 0
+                ? message.headers : message.trailers;
+
+        decoder.decode(new ByteArrayInputStream(block), (name, value, sensitive) -> target.add(new String[]{
+                new String(name, StandardCharsets.ISO_8859_1),
+                new String(value, StandardCharsets.ISO_8859_1)}));
+
+        if (decoder.endHeaderBlock()) {
+            log.debug("http/2 header list was truncated");
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+                ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    public List<Packet> getParsedPackets() {
+        if (!parsed) {
+            throw new IllegalStateException("HTTP/2 is not parsed");
+        }
+
+        return parsedPackets;
+    }
+
+    /**
+     * Все данные одного направления подряд: кадры могут переходить из пакета в пакет
+     */
+    private final class Side {
+
+        private final boolean incoming;
+        private final byte[] data;
+
+        // для каждого непустого пакета направления - его номер в стриме и смещение в data
+        private final int[] packetIndexes;
+        private final int[] offsets;
+
+        Side(boolean incoming) {
+            this.incoming = incoming;
+
+            int count = 0;
+            for (Packet packet : packets) {
+                if (packet.isIncoming() == incoming && packet.getContent().length > 0) {
+                    count++;
+                }
+            }
+
+            packetIndexes = new int[count];
+            offsets = new int[count];
+
+            int size = 0;
+            for (int i = 0, j = 0; i < packets.size(); i++) {
+                final Packet packet = packets.get(i);
+                if (packet.isIncoming() == incoming && packet.getContent().length > 0) {
+                    packetIndexes[j] = i;
+                    offsets[j] = size;
+                    size += packet.getContent().length;
+                    j++;
+                }
+            }
+
+            data = new byte[size];
+            for (int i = 0; i < packetIndexes.length; i++) {
+                final byte[] content = packets.get(packetIndexes[i]).getContent();
+                System.arraycopy(content, 0, data, offsets[i], content.length);
+            }
+        }
+
+        /**
+         * @return номер пакета, в котором находится байт с этим смещением
+         */
+        int packetAt(int offset) {
+            int index = Arrays.binarySearch(offsets, offset);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return packetIndexes[Math.max(0, index)];
+        }
+    }
+
+    private static final class Message {
+
+        private final boolean incoming;
+        private final boolean request;
+        private final int firstPacket;
+        private final int order;
+        private int streamId;
+
+        private final List<String[]> headers = new ArrayList<>();
+        private final List<String[]> trailers = new ArrayList<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        // данные http/1.1 до перехода на http/2, выводятся как есть
+        private byte[] raw;
+
+        Message(boolean incoming, boolean request, int firstPacket, int order) {
+            this.incoming = incoming;
+            this.request = request;
+            this.firstPacket = firstPacket;
+            this.order = order;
+        }
+
+        /**
+         * Запрос выводится как "POST /path HTTP/2", ответ - как "HTTP/2 200", остальные псевдозаголовки
+         * остаются среди заголовков. Сжатое тело распаковывается, но не больше maxDecodedSize байт.
+         */
+        byte[] render(int maxDecodedSize) {
+            final StringBuilder head = new StringBuilder(256);
+            if (request) {
+                head.append(find(":method")).append(' ').append(find(":path")).append(" HTTP/2\r\n");
+            } else {
+                head.append("HTTP/2 ").append(find(":status")).append("\r\n");
+            }
+
+            String contentEncoding = null;
+            for (String[] header : headers) {
+                final String name = header[0];
+                if (name.equals(":method") || name.equals(":path") || name.equals(":status")) {
+                    continue;
+                }
+                if (name.equals("content-encoding")) {
+                    contentEncoding = header[1].toLowerCase(Locale.ROOT);
+                }
+                head.append(name).append(": ").append(header[1]).append("\r\n");
+            }
+            head.append("\r\n");
+
+            byte[] content = body.toByteArray();
+            if (contentEncoding != null && content.length > 0) {
+                final byte[] decoded = Http1Parser.decodeContent(content, 0, content.length, contentEncoding, maxDecodedSize);
+                if (decoded != null) {
+                    content = decoded;
+                }
+            }
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream(head.length() + content.length + 64);
+            os.writeBytes(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            os.writeBytes(content);
+
+            if (!trailers.isEmpty()) {
+                final StringBuilder tail = new StringBuilder("\r\n");
+                for (String[] trailer : trailers) {
+                    tail.append(trailer[0]).append(": ").append(trailer[1]).append("\r\n");
+                }
+                os.writeBytes(tail.toString().getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            return os.toByteArray();
+        }
+
+        private String find(String name) {
+            for (String[] header : headers) {
+                if (header[0].equals(name)) {
+                    return header[1];
+                }
+            }
+            return "";
+        }
+    }
+
+}
@@ -1,65 +1,49 @@
 package ru.serega6531.packmate.service.optimization;
 
 import lombok.extern.slf4j.Slf4j;
-import rawhttp.core.HttpMessage;
-import rawhttp.core.RawHttp;
-import rawhttp.core.RawHttpOptions;
-import rawhttp.core.body.BodyReader;
-import rawhttp.core.errors.InvalidHttpHeader;
-import rawhttp.core.errors.InvalidHttpRequest;
-import rawhttp.core.errors.InvalidHttpResponse;
-import rawhttp.core.errors.InvalidMessageFrame;
-import rawhttp.core.errors.UnknownEncodingException;
 import ru.serega6531.packmate.model.Packet;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Optional;
+import java.util.Queue;
 
 @Slf4j
 public class HttpProcessor {
 
-    private static final RawHttp rawHttp = new RawHttp(RawHttpOptions.strict());
+    private final int maxDecodedSize;
 
-    public void process(List<Packet> packets) {
-        packets.stream()
-                .filter(p -> !p.isWebSocketParsed())
-                .forEach(this::processPacket);
+    public HttpProcessor() {
+        this(Http1Parser.DEFAULT_MAX_DECODED_SIZE);
     }
 
-    private void processPacket(Packet packet) {
-        try {
-            ByteArrayInputStream contentStream = new ByteArrayInputStream(packet.getContent());
-            HttpMessage message;
+    /**
+     * @param maxDecodedSize сколько байт может занять тело после распаковки
+     */
+    public HttpProcessor(int maxDecodedSize) {
+        this.maxDecodedSize = maxDecodedSize;
+    }
 
-            if (packet.isIncoming()) {
-                message = rawHttp.parseRequest(contentStream).eagerly();
-            } else {
-                message = rawHttp.parseResponse(contentStream).eagerly();
-            }
+    public void process(List<Packet> packets) {
+        final Queue<String> methods = new ArrayDeque<>();
 
-            packet.setContent(getDecodedMessage(message));
-            packet.setHasHttpBody(message.getBody().isPresent());
-        } catch (IOException | InvalidHttpRequest | InvalidHttpResponse | InvalidHttpHeader | InvalidMessageFrame |
-                 UnknownEncodingException e) {
-            log.warn("Could not parse http packet", e);
-        }
+        packets.stream()
+                .filter(p -> !p.isWebSocketParsed())
+                .forEach(p -> processPacket(p, methods));
     }
 
-    private byte[] getDecodedMessage(HttpMessage message) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
-
-        message.getStartLine().writeTo(os);
-        message.getHeaders().writeTo(os);
+    /**
+     * @param methods методы запросов, на которые еще не было ответа
+     */
+    private void processPacket(Packet packet, Queue<String> methods) {
+        final Http1Parser.Result result = Http1Parser.parse(packet.getContent(), packet.isIncoming(), methods, maxDecodedSize);
 
-        Optional<? extends BodyReader> body = message.getBody();
-        if (body.isPresent()) {
-            body.get().writeDecodedTo(os, 256);
+        if (result == null) {
+            log.debug("Packet does not start with an http message");
+            return;
         }
 
-        return os.toByteArray();
+        packet.setContent(result.content());
+        packet.setHasHttpBody(result.hasBody());
     }
 
 }
@@ -3,45 +3,34 @@ package ru.serega6531.packmate.service.optimization;
 import ru.serega6531.packmate.model.Packet;
 import ru.serega6531.packmate.utils.PacketUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class PacketsMerger {
 
     /**
      * Сжать соседние пакеты в одном направлении в один. Не склеивает WS и не-WS пакеты.
+     * Список собирается заново за один проход, без сдвигов при каждой склейке.
      */
     public void mergeAdjacentPackets(List<Packet> packets) {
+        final List<Packet> result = new ArrayList<>(packets.size());
         int start = 0;
-        int packetsInRow = 0;
-        Packet previous = null;
 
-        for (int i = 0; i < packets.size(); i++) {
-            Packet packet = packets.get(i);
-            if (previous == null || !shouldBeInSameBatch(packet, previous)) {
-                if (packetsInRow > 1) {
-                    compress(packets, start, i);
-
-                    i = start + 1;  // продвигаем указатель на следующий после склеенного блок
-                }
+        for (int i = 1; i <= packets.size(); i++) {
+            if (i == packets.size() || !shouldBeInSameBatch(packets.get(i), packets.get(start))) {
+                result.add(i - start > 1 ? compress(packets.subList(start, i)) : packets.get(start));
                 start = i;
-                packetsInRow = 1;
-            } else {
-                packetsInRow++;
             }
-
-            previous = packet;
         }
 
-        if (packetsInRow > 1) {
-            compress(packets, start, packets.size());
-        }
+        packets.clear();
+        packets.addAll(result);
     }
 
     /**
-     * Сжать кусок со start по end в один пакет
+     * Сжать несколько пакетов в один
      */
-    private void compress(List<Packet> packets, int start, int end) {
-        final List<Packet> cut = packets.subList(start, end);
+    private Packet compress(List<Packet> cut) {
         final long timestamp = cut.get(0).getTimestamp();
         final boolean httpProcessed = cut.stream().anyMatch(Packet::isHttpProcessed);
         final boolean webSocketParsed = cut.stream().anyMatch(Packet::isWebSocketParsed);
@@ -49,15 +38,14 @@ public class PacketsMerger {
         final boolean incoming = cut.get(0).isIncoming();
         final byte[] content = PacketUtils.mergePackets(cut);
 
-        packets.removeAll(cut);
-        packets.add(start, Packet.builder()
+        return Packet.builder()
                 .incoming(incoming)
                 .timestamp(timestamp)
                 .httpProcessed(httpProcessed)
                 .webSocketParsed(webSocketParsed)
                 .tlsDecrypted(tlsDecrypted)
                 .content(content)
-                .build());
+                .build();
     }
 
     private boolean shouldBeInSameBatch(Packet p1, Packet p2) {
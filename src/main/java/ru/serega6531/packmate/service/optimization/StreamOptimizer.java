@@ -13,11 +13,11 @@ public class StreamOptimizer {
 
     private final RsaKeysHolder keysHolder;
     private final CtfService service;
+    private final int maxDecodedSize;
     private List<Packet> packets;
 
     private final PacketsMerger merger = new PacketsMerger();
     private final HttpUrldecodeProcessor urldecodeProcessor = new HttpUrldecodeProcessor();
-    private final HttpProcessor httpProcessor = new HttpProcessor();
 
 
     /**
@@ -42,6 +42,16 @@ public class StreamOptimizer {
             }
         }
 
+        boolean http2Parsed = false;
+        if (service.isParseHttp2()) {
+            try {
+                http2Parsed = parseHttp2();
+            } catch (Exception e) {
+                log.warn("Error optimizing stream (http2)", e);
+                return packets;
+            }
+        }
+
         if (service.isUrldecodeHttpRequests()) {
             try {
                 urldecodeProcessor.urldecodeRequests(packets);
@@ -51,7 +61,8 @@ public class StreamOptimizer {
             }
         }
 
-        if (service.isMergeAdjacentPackets() || service.isHttp()) {
+        // после http/2 каждый пакет - отдельный запрос или ответ, склеивать и разбирать их как http/1 нельзя
+        if ((service.isMergeAdjacentPackets() || service.isHttp()) && !http2Parsed) {
             try {
                 merger.mergeAdjacentPackets(packets);
             } catch (Exception e) {
@@ -60,9 +71,9 @@ public class StreamOptimizer {
             }
         }
 
-        if (service.isHttp()) {
+        if (service.isHttp() && !http2Parsed) {
             try {
-                httpProcessor.process(packets);
+                new HttpProcessor(maxDecodedSize).process(packets);
             } catch (Exception e) {
                 log.warn("Error optimizing stream (http)", e);
                 return packets;
@@ -94,4 +105,17 @@ public class StreamOptimizer {
         packets = parser.getParsedPackets();
     }
 
+    /**
+     * @return true, если стрим разобран как http/2
+     */
+    private boolean parseHttp2() {
+        final Http2Parser parser = new Http2Parser(packets, maxDecodedSize);
+        if (!parser.isParsed()) {
+            return false;
+        }
+
+        packets = parser.getParsedPackets();
+        return true;
+    }
+
 }
@@ -170,9 +170,10 @@ public class WebSocketsParser {
 
     private String getHandshake(final List<Packet> packets) {
         final String handshake = new String(PacketUtils.mergePackets(packets));
+        final String lowerCaseHandshake = handshake.toLowerCase();
 
-        if (!handshake.toLowerCase().contains(WEBSOCKET_CONNECTION_HEADER)
-                || !handshake.toLowerCase().contains(WEBSOCKET_UPGRADE_HEADER)) {
+        if (!lowerCaseHandshake.contains(WEBSOCKET_CONNECTION_HEADER)
+                || !lowerCaseHandshake.contains(WEBSOCKET_UPGRADE_HEADER)) {
             return null;
         }
 
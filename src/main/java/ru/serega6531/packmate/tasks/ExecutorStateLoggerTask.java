@@ -3,21 +3,52 @@ package ru.serega6531.packmate.tasks;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import ru.serega6531.packmate.model.pojo.CaptureStatsDto;
+import ru.serega6531.packmate.service.PatternMatcher;
 import ru.serega6531.packmate.service.PcapService;
+import ru.serega6531.packmate.service.StreamPipeline;
+
+import java.util.HashMap;
+import java.util.Map;
 
 @Component
 @Slf4j
 public class ExecutorStateLoggerTask {
 
     private final PcapService service;
+    private final StreamPipeline pipeline;
+
+    // потерянные пакеты по интерфейсам при предыдущей проверке
+    private final Map<String, Long> lastDropped = new HashMap<>();
 
-    public ExecutorStateLoggerTask(PcapService service) {
+    public ExecutorStateLoggerTask(PcapService service, StreamPipeline pipeline) {
         this.service = service;
+        this.pipeline = pipeline;
     }
 
     @Scheduled(fixedDelayString = "PT1M", initialDelayString = "PT1M")
     public void cleanup() {
         log.info("Executor state: {}", service.getExecutorState());
+        log.info("Stream pipeline state: {}", pipeline.getState());
+
+        for (CaptureStatsDto stats : service.getCaptureStats()) {
+            log.info("Capture on {}: {} received, {} dropped by kernel, {} dropped by interface",
+                    stats.getInterfaceName(), stats.getReceived(), stats.getDropped(), stats.getIfDropped());
+
+            long dropped = stats.getDropped() + stats.getIfDropped();
+            long previous = lastDropped.getOrDefault(stats.getInterfaceName(), 0L);
+            lastDropped.put(stats.getInterfaceName(), dropped);
+
+            if (dropped > previous) {
+                log.warn("Capture on {} is losing packets: {} dropped since the last check",
+                        stats.getInterfaceName(), dropped - previous);
+            }
+        }
+
+        long overflowedPackets = PatternMatcher.getOverflowedPackets();
+        if (overflowedPackets > 0) {
+            log.warn("Packets with more than {} pattern matches: {}", PatternMatcher.MAX_MATCHES_PER_PACKET, overflowedPackets);
+        }
     }
 
 }
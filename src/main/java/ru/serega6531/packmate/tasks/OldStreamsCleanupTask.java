@@ -11,7 +11,8 @@ import java.time.ZonedDateTime;
 
 @Component
 @Slf4j
-@ConditionalOnExpression("${packmate.cleanup.enabled:false} && '${packmate.capture-mode}' == 'LIVE'")
+@ConditionalOnExpression("${packmate.cleanup.enabled:false} && " +
+        "('${packmate.capture-mode}' == 'LIVE' || '${packmate.capture-mode}' == 'WATCH')")
 public class OldStreamsCleanupTask {
 
     private final StreamService service;
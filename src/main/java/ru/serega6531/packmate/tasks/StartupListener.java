@@ -26,7 +26,7 @@ public class StartupListener {
     public void afterStartup() throws PcapNativeException {
         servicesService.updateFilter();
 
-        if (packmateProperties.captureMode() == CaptureMode.LIVE) {
+        if (packmateProperties.captureMode() == CaptureMode.LIVE || packmateProperties.captureMode() == CaptureMode.WATCH) {
             pcapService.start();
         }
     }
@@ -30,14 +30,16 @@ public class TimeoutStreamsSaver {
 
     @Scheduled(fixedRateString = "PT${packmate.timeout.check-interval}S", initialDelayString = "PT${packmate.timeout.check-interval}S")
     public void saveStreams() {
-        int streamsClosed = pcapWorker.closeTimeoutStreams(Protocol.UDP, udpStreamTimeoutMillis);
+        final long now = System.currentTimeMillis();
+
+        int streamsClosed = pcapWorker.closeTimeoutStreams(Protocol.UDP, udpStreamTimeoutMillis, now);
         if (streamsClosed > 0) {
-            log.info("{} udp streams closed", streamsClosed);
+            log.debug("{} udp streams closed", streamsClosed);
         }
 
-        streamsClosed = pcapWorker.closeTimeoutStreams(Protocol.TCP, tcpStreamTimeoutMillis);
+        streamsClosed = pcapWorker.closeTimeoutStreams(Protocol.TCP, tcpStreamTimeoutMillis, now);
         if (streamsClosed > 0) {
-            log.info("{} tcp streams closed", streamsClosed);
+            log.debug("{} tcp streams closed", streamsClosed);
         }
     }
 
@@ -0,0 +1,245 @@
+package ru.serega6531.packmate.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * Автомат Ахо-Корасик: находит все вхождения нескольких образцов за один проход по тексту.
+ * Алфавит - символы char, байты передаются как значения 0..255.
+ * После построения автомат не меняется и может использоваться из нескольких потоков одновременно.
+ */
+public class AhoCorasick {
+
+    public static final int ROOT = 0;
+
+    @FunctionalInterface
+    public interface MatchListener {
+        /**
+         * @param patternIndex индекс образца в списке, переданном при построении
+         * @param start        позиция первого символа вхождения
+         * @param end          позиция последнего символа вхождения (включительно)
+         */
+        void onMatch(int patternIndex, int start, int end);
+    }
+
+    private final int[] patternLengths;
+
+    // переходы состояния i: отсортированные символы labels[i] и соответствующие им состояния targets[i]
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] fail;
+
+    // образцы, заканчивающиеся в состоянии, и ближайшее по суффиксным ссылкам состояние с образцами
+    private final int[][] outputs;
+    private final int[] outputLinks;
+
+    // для корня переходы по первым 256 символам хранятся таблицей, чтобы не искать их каждый раз
+    private final int[] rootTable = new int[256];
+
+    private AhoCorasick(List<char[]> patterns) {
+        patternLengths = new int[patterns.size()];
+
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> terminals = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        terminals.add(new ArrayList<>());
+
+        for (int i = 0; i < patterns.size(); i++) {
+            char[] pattern = patterns.get(i);
+            patternLengths[i] = pattern.length;
+
+            if (pattern.length == 0) {
+                continue;  // пустой образец ничего не находит
+            }
+
+            int state = ROOT;
+            for (char c : pattern) {
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    terminals.add(new ArrayList<>());
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+
+            terminals.get(state).add(i);
+        }
+
+        int states = trie.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        outputs = new int[states][];
+        fail = new int[states];
+        outputLinks = new int[states];
+
+        for (int state = 0; state < states; state++) {
+            TreeMap<Character, Integer> edges = trie.get(state);
+            labels[state] = new char[edges.size()];
+            targets[state] = new int[edges.size()];
+
+            int j = 0;
+            for (var edge : edges.entrySet()) {
+                labels[state][j] = edge.getKey();
+                targets[state][j] = edge.getValue();
+                j++;
+            }
+
+            outputs[state] = terminals.get(state).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        buildLinks();
+    }
+
+    public static AhoCorasick ofStrings(List<String> patterns) {
+        return new AhoCorasick(patterns.stream().map(String::toCharArray).toList());
+    }
+
+    public static AhoCorasick ofBytes(List<byte[]> patterns) {
+        return new AhoCorasick(patterns.stream().map(AhoCorasick::bytesToChars).toList());
+    }
+
+    public int getPatternsCount() {
+        return patternLengths.length;
+    }
+
+    public void search(CharSequence text, MatchListener listener) {
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = nextState(state, text.charAt(i));
+            reportOutputs(state, i, listener);
+        }
+    }
+
+    public void search(byte[] data, MatchListener listener) {
+        search(ROOT, data, listener);
+    }
+
+    /**
+     * Продолжает поиск с состояния, на котором закончился предыдущий вызов,
+     * так что находятся и вхождения, начавшиеся в предыдущих частях данных.
+     * Позиции вхождений считаются от начала data, поэтому начало может быть отрицательным.
+     * @return состояние автомата после обработки data
+     */
+    public int search(int state, byte[] data, MatchListener listener) {
+        for (int i = 0; i < data.length; i++) {
+            state = nextState(state, (char) (data[i] & 0xFF));
+            reportOutputs(state, i, listener);
+        }
+        return state;
+    }
+
+    public boolean containsAny(CharSequence text) {
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = nextState(state, text.charAt(i));
+            if (hasOutputs(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsAny(byte[] data) {
+        int state = ROOT;
+        for (byte b : data) {
+            state = nextState(state, (char) (b & 0xFF));
+            if (hasOutputs(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasOutputs(int state) {
+        return outputs[state].length > 0 || outputLinks[state] != ROOT;
+    }
+
+    public int nextState(int state, char c) {
+        while (true) {
+            if (state == ROOT) {
+                return c < rootTable.length ? rootTable[c] : findEdge(ROOT, c);
+            }
+
+            int next = findEdge(state, c);
+            if (next > 0) {
+                return next;
+            }
+
+            state = fail[state];
+        }
+    }
+
+    private int findEdge(int state, char c) {
+        char[] stateLabels = labels[state];
+        int idx = stateLabels.length < 8 ? linearSearch(stateLabels, c) : Arrays.binarySearch(stateLabels, c);
+        return idx >= 0 ? targets[state][idx] : ROOT;
+    }
+
+    private static int linearSearch(char[] array, char c) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param position позиция последнего прочитанного символа
+     */
+    private void reportOutputs(int state, int position, MatchListener listener) {
+        if (outputs[state].length == 0) {
+            state = outputLinks[state];
+        }
+
+        while (state != ROOT) {
+            for (int patternIndex : outputs[state]) {
+                listener.onMatch(patternIndex, position - patternLengths[patternIndex] + 1, position);
+            }
+            state = outputLinks[state];
+        }
+    }
+
+    private void buildLinks() {
+        for (int c = 0; c < rootTable.length; c++) {
+            rootTable[c] = findEdge(ROOT, (char) c);
+        }
+
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[ROOT]) {
+            fail[child] = ROOT;
+            outputLinks[child] = ROOT;
+            queue.add(child);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+
+            for (int j = 0; j < labels[state].length; j++) {
+                char c = labels[state][j];
+                int child = targets[state][j];
+
+                int failState = nextState(fail[state], c);
+                fail[child] = failState;
+                outputLinks[child] = outputs[failState].length > 0 ? failState : outputLinks[failState];
+
+                queue.add(child);
+            }
+        }
+    }
+
+    private static char[] bytesToChars(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        return chars;
+    }
+
+}
@@ -0,0 +1,149 @@
+package ru.serega6531.packmate.utils;
+
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Набор адресов и подсетей вида 10.60.1.2 или 10.60.0.0/16.
+ * Адреса хранятся упакованными в пары long (IPv4 - в виде IPv4-mapped IPv6), так же как в ключе потока,
+ * поэтому проверка пакета не создает объектов.
+ * Сетей обычно немного (по одной на вулнбокс), так что они просто перебираются.
+ */
+public class IpNetworkSet {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF_0000_0000L;
+
+    private final List<String> definitions;
+
+    private final long[] his;
+    private final long[] los;
+    private final long[] hiMasks;
+    private final long[] loMasks;
+
+    private IpNetworkSet(List<String> definitions) {
+        this.definitions = definitions;
+
+        final int size = definitions.size();
+        his = new long[size];
+        los = new long[size];
+        hiMasks = new long[size];
+        loMasks = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            parse(i, definitions.get(i));
+        }
+    }
+
+    /**
+     * @param definitions адреса или подсети в нотации CIDR, пустые строки пропускаются
+     * @throws IllegalArgumentException если адрес или длина префикса некорректны
+     */
+    public static IpNetworkSet of(@Nullable List<String> definitions) {
+        if (definitions == null) {
+            return new IpNetworkSet(List.of());
+        }
+
+        return new IpNetworkSet(definitions.stream()
+                .map(String::trim)
+                .filter(definition -> !definition.isEmpty())
+                .toList());
+    }
+
+    public boolean isEmpty() {
+        return definitions.isEmpty();
+    }
+
+    public List<String> getDefinitions() {
+        return definitions;
+    }
+
+    @SneakyThrows
+    private void parse(int index, String definition) {
+        final int slash = definition.indexOf('/');
+        final InetAddress address = InetAddress.getByName(slash < 0 ? definition : definition.substring(0, slash));
+        final int maxPrefix = address.getAddress().length * 8;
+
+        int prefix = maxPrefix;
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(definition.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid network: " + definition, e);
+            }
+        }
+
+        if (prefix < 0 || prefix > maxPrefix) {
+            throw new IllegalArgumentException("Invalid prefix length in " + definition);
+        }
+
+        // префикс IPv4 считается от начала IPv4-mapped адреса
+        final int fullPrefix = maxPrefix == 32 ? prefix + 96 : prefix;
+
+        hiMasks[index] = mask(fullPrefix);
+        loMasks[index] = mask(fullPrefix - 64);
+        his[index] = high(address) & hiMasks[index];
+        los[index] = low(address) & loMasks[index];
+    }
+
+    /**
+     * Маска из bits старших единиц в 64-битном слове
+     */
+    private static long mask(int bits) {
+        if (bits <= 0) {
+            return 0;
+        }
+        if (bits >= 64) {
+            return -1L;
+        }
+        return -1L << (64 - bits);
+    }
+
+    public boolean contains(long hi, long lo) {
+        for (int i = 0; i < his.length; i++) {
+            if ((hi & hiMasks[i]) == his[i] && (lo & loMasks[i]) == los[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean contains(InetAddress address) {
+        return contains(high(address), low(address));
+    }
+
+    /**
+     * Старшие 64 бита адреса в виде IPv6
+     */
+    public static long high(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return bytes.length == 4 ? 0 : toLong(bytes, 0);
+    }
+
+    /**
+     * Младшие 64 бита адреса в виде IPv6
+     */
+    public static long low(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return bytes.length == 4 ? IPV4_MAPPED_PREFIX | (toLong(bytes, 0) >>> 32) : toLong(bytes, 8);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result <<= 8;
+            if (offset + i < bytes.length) {
+                result |= bytes[offset + i] & 0xFF;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(", ", definitions);
+    }
+
+}
@@ -3,26 +3,36 @@ package ru.serega6531.packmate.utils;
 import lombok.experimental.UtilityClass;
 import ru.serega6531.packmate.model.Packet;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 @UtilityClass
 public class PacketUtils {
 
+    /**
+     * Содержимое пакетов подряд. Данные копируются один раз, сразу в массив итогового размера.
+     * Для одного пакета возвращается его собственный массив, поэтому результат нельзя изменять.
+     */
     public byte[] mergePackets(List<Packet> cut) {
-        int size = cut.stream()
-                .map(Packet::getContent)
-                .mapToInt(c -> c.length)
-                .sum();
+        if (cut.size() == 1) {
+            return cut.get(0).getContent();
+        }
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream(size);
+        int size = 0;
+        for (Packet packet : cut) {
+            size += packet.getContent().length;
+        }
 
-        cut.stream()
-                .map(Packet::getContent)
-                .forEach(os::writeBytes);
+        final byte[] result = new byte[size];
+        int position = 0;
 
-        return os.toByteArray();
+        for (Packet packet : cut) {
+            final byte[] content = packet.getContent();
+            System.arraycopy(content, 0, result, position, content.length);
+            position += content.length;
+        }
+
+        return result;
     }
 
     public List<List<Packet>> sliceToSides(List<Packet> packets) {
@@ -0,0 +1,74 @@
+package ru.serega6531.packmate;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.serega6531.packmate.utils.IpNetworkSet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+public class IpNetworkSetTest {
+
+    @Test
+    public void testSingleAddresses() throws UnknownHostException {
+        IpNetworkSet set = IpNetworkSet.of(List.of("10.60.1.2", " 10.60.2.2 ", ""));
+
+        Assertions.assertEquals(List.of("10.60.1.2", "10.60.2.2"), set.getDefinitions());
+        Assertions.assertTrue(set.contains(InetAddress.getByName("10.60.1.2")));
+        Assertions.assertTrue(set.contains(InetAddress.getByName("10.60.2.2")));
+        Assertions.assertFalse(set.contains(InetAddress.getByName("10.60.1.3")));
+    }
+
+    @Test
+    public void testIpV4Networks() throws UnknownHostException {
+        IpNetworkSet set = IpNetworkSet.of(List.of("10.60.0.0/16", "192.168.1.128/25"));
+
+        Assertions.assertTrue(set.contains(InetAddress.getByName("10.60.0.1")));
+        Assertions.assertTrue(set.contains(InetAddress.getByName("10.60.255.255")));
+        Assertions.assertFalse(set.contains(InetAddress.getByName("10.61.0.1")));
+        Assertions.assertTrue(set.contains(InetAddress.getByName("192.168.1.200")));
+        Assertions.assertFalse(set.contains(InetAddress.getByName("192.168.1.100")));
+    }
+
+    @Test
+    public void testIpV6Networks() throws UnknownHostException {
+        IpNetworkSet set = IpNetworkSet.of(List.of("fd00:10:60::/48", "2001:db8::1"));
+
+        Assertions.assertTrue(set.contains(InetAddress.getByName("fd00:10:60:1::2")));
+        Assertions.assertFalse(set.contains(InetAddress.getByName("fd00:10:61::2")));
+        Assertions.assertTrue(set.contains(InetAddress.getByName("2001:db8::1")));
+        Assertions.assertFalse(set.contains(InetAddress.getByName("2001:db8::2")));
+
+        // IPv4 адрес не попадает в IPv6 сеть
+        Assertions.assertFalse(set.contains(InetAddress.getByName("10.60.0.1")));
+    }
+
+    @Test
+    public void testPackedAddresses() throws UnknownHostException {
+        IpNetworkSet set = IpNetworkSet.of(List.of("10.60.0.0/16"));
+        InetAddress address = InetAddress.getByName("10.60.3.4");
+
+        Assertions.assertTrue(set.contains(IpNetworkSet.high(address), IpNetworkSet.low(address)));
+        Assertions.assertEquals(0, IpNetworkSet.high(address));
+        Assertions.assertEquals(0xFFFF_0A3C_0304L, IpNetworkSet.low(address));
+    }
+
+    @Test
+    public void testEmptyAndCatchAll() throws UnknownHostException {
+        Assertions.assertTrue(IpNetworkSet.of(null).isEmpty());
+        Assertions.assertFalse(IpNetworkSet.of(List.of()).contains(InetAddress.getByName("10.60.0.1")));
+
+        IpNetworkSet all = IpNetworkSet.of(List.of("0.0.0.0/0"));
+        Assertions.assertTrue(all.contains(InetAddress.getByName("1.2.3.4")));
+    }
+
+    @Test
+    public void testInvalidDefinitions() {
+        for (String definition : Arrays.asList("10.60.0.0/33", "10.60.0.0/-1", "10.60.0.0/abc", "::/129")) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> IpNetworkSet.of(List.of(definition)));
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 import ru.serega6531.packmate.model.FoundPattern;
 import ru.serega6531.packmate.model.Pattern;
 import ru.serega6531.packmate.model.enums.PatternSearchType;
+import ru.serega6531.packmate.service.CompiledPatternGroup;
 import ru.serega6531.packmate.service.PatternMatcher;
 
 import java.util.List;
@@ -85,6 +86,75 @@ public class PatternMatcherTest {
         assertMatchesAreCorrect(correctMatches, matches);
     }
 
+    @Test
+    public void testMultipleSubstrings() {
+        String content = "xxabcxxbcdxxabcd";
+        Set<FoundPattern> correctMatches = Set.of(
+                FoundPattern.builder()
+                        .startPosition(2)
+                        .endPosition(4)
+                        .build(),
+                FoundPattern.builder()
+                        .startPosition(7)
+                        .endPosition(9)
+                        .build(),
+                FoundPattern.builder()
+                        .startPosition(12)
+                        .endPosition(14)
+                        .build());
+
+        final Pattern first = new Pattern();
+        first.setId(1);
+        first.setValue("abc");
+        first.setSearchType(PatternSearchType.SUBSTRING);
+
+        final Pattern second = new Pattern();
+        second.setId(2);
+        second.setValue("bcd");
+        second.setSearchType(PatternSearchType.SUBSTRING);
+
+        final PatternMatcher matcher = new PatternMatcher(content.getBytes(), List.of(first, second));
+        final Set<FoundPattern> matches = matcher.findMatches();
+
+        assertMatchesAreCorrect(correctMatches, matches);
+    }
+
+    @Test
+    public void testMatchesAny() {
+        final Pattern substring = new Pattern();
+        substring.setId(1);
+        substring.setValue("flag");
+        substring.setSearchType(PatternSearchType.SUBSTRING);
+
+        final Pattern regex = new Pattern();
+        regex.setId(2);
+        regex.setValue("[0-9]{3}");
+        regex.setSearchType(PatternSearchType.REGEX);
+
+        final CompiledPatternGroup group = CompiledPatternGroup.compile(List.of(substring, regex));
+
+        Assertions.assertTrue(new PatternMatcher("get flag".getBytes()).matchesAny(group));
+        Assertions.assertTrue(new PatternMatcher("id=123".getBytes()).matchesAny(group));
+        Assertions.assertFalse(new PatternMatcher("fla g 12".getBytes()).matchesAny(group));
+        Assertions.assertFalse(new PatternMatcher("flag".getBytes()).matchesAny(CompiledPatternGroup.EMPTY));
+    }
+
+    @Test
+    public void testMatchesLimit() {
+        String content = "a".repeat(PatternMatcher.MAX_MATCHES_PER_PACKET + 500);
+
+        final Pattern pattern = new Pattern();
+        pattern.setId(1);
+        pattern.setValue("a");
+        pattern.setSearchType(PatternSearchType.SUBSTRING);
+
+        final PatternMatcher matcher = new PatternMatcher(content.getBytes(), List.of(pattern));
+        final Set<FoundPattern> matches = matcher.findMatches();
+
+        Assertions.assertEquals(PatternMatcher.MAX_MATCHES_PER_PACKET, matches.size());
+        Assertions.assertTrue(PatternMatcher.getOverflowedPackets() > 0);
+    }
+
     private void assertMatchesAreCorrect(Set<FoundPattern> correctMatches, Set<FoundPattern> foundMatches) {
         Assertions.assertEquals(correctMatches.size(), foundMatches.size());
 
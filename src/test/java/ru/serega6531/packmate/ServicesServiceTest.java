@@ -0,0 +1,100 @@
+package ru.serega6531.packmate;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.serega6531.packmate.model.CtfService;
+import ru.serega6531.packmate.repository.ServiceRepository;
+import ru.serega6531.packmate.service.ServicesService;
+import ru.serega6531.packmate.utils.IpNetworkSet;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class ServicesServiceTest {
+
+    private static final int SERVICE_PORT = 8080;
+    private static final int OTHER_SERVICE_PORT = 9000;
+    private static final int EPHEMERAL_PORT = 51234;
+
+    private final ServicesService servicesService = createServicesService(
+            IpNetworkSet.of(List.of("10.60.0.0/16")), SERVICE_PORT, OTHER_SERVICE_PORT);
+
+    @Test
+    public void testExternalClient() {
+        // запрос к вулнбоксу и ответ на него
+        assertService(SERVICE_PORT, false, EPHEMERAL_PORT, true, SERVICE_PORT);
+        assertService(SERVICE_PORT, true, SERVICE_PORT, false, EPHEMERAL_PORT);
+
+        // порт сервиса на удаленной стороне не считается
+        assertService(null, true, EPHEMERAL_PORT, false, SERVICE_PORT);
+        assertService(null, false, SERVICE_PORT, false, SERVICE_PORT);
+    }
+
+    @Test
+    public void testBothEndsLocal() {
+        // другой вулнбокс или хост сети команды обращается к сервису: у клиента эфемерный порт
+        assertService(SERVICE_PORT, true, EPHEMERAL_PORT, true, SERVICE_PORT);
+        assertService(SERVICE_PORT, true, SERVICE_PORT, true, EPHEMERAL_PORT);
+
+        // клиент тоже занял порт сервиса: приоритет у получателя
+        assertService(OTHER_SERVICE_PORT, true, SERVICE_PORT, true, OTHER_SERVICE_PORT);
+
+        assertService(null, true, EPHEMERAL_PORT, true, EPHEMERAL_PORT + 1);
+    }
+
+    @Test
+    public void testStreamAddresses() throws UnknownHostException {
+        InetAddress vulnbox = InetAddress.getByName("10.60.1.2");
+        InetAddress otherVulnbox = InetAddress.getByName("10.60.2.2");
+        InetAddress external = InetAddress.getByName("10.80.1.2");
+
+        Assertions.assertEquals(Optional.of(SERVICE_PORT), servicesService.findService(
+                otherVulnbox, EPHEMERAL_PORT, vulnbox, SERVICE_PORT).map(CtfService::getPort));
+        Assertions.assertEquals(vulnbox, servicesService.findLocalIp(otherVulnbox, vulnbox, SERVICE_PORT));
+
+        // стрим начался с ответа сервера
+        Assertions.assertEquals(Optional.of(SERVICE_PORT), servicesService.findService(
+                vulnbox, SERVICE_PORT, otherVulnbox, EPHEMERAL_PORT).map(CtfService::getPort));
+        Assertions.assertEquals(vulnbox, servicesService.findLocalIp(vulnbox, otherVulnbox, EPHEMERAL_PORT));
+
+        Assertions.assertEquals(vulnbox, servicesService.findLocalIp(external, vulnbox, SERVICE_PORT));
+        Assertions.assertTrue(servicesService.findService(external, EPHEMERAL_PORT, external, SERVICE_PORT).isEmpty());
+        Assertions.assertNull(servicesService.findLocalIp(external, external, SERVICE_PORT));
+    }
+
+    private void assertService(Integer expectedPort, boolean sourceIsLocal, int sourcePort,
+                               boolean destIsLocal, int destPort) {
+        CtfService service = servicesService.findService(sourceIsLocal, sourcePort, destIsLocal, destPort);
+        Assertions.assertEquals(expectedPort, service != null ? service.getPort() : null);
+    }
+
+    private static ServicesService createServicesService(IpNetworkSet localNetworks, int... ports) {
+        List<CtfService> services = new ArrayList<>();
+        for (int port : ports) {
+            CtfService service = new CtfService();
+            service.setPort(port);
+            service.setName("service" + port);
+            services.add(service);
+        }
+
+        // сервисы загружаются из репозитория только через findAll
+        ServiceRepository repository = (ServiceRepository) Proxy.newProxyInstance(
+                ServiceRepository.class.getClassLoader(),
+                new Class<?>[]{ServiceRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("findAll") && method.getParameterCount() == 0) {
+                        return services;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        ServicesService servicesService = new ServicesService(repository, null, null, null, localNetworks);
+        servicesService.init();
+        return servicesService;
+    }
+
+}
@@ -1,17 +1,26 @@
 package ru.serega6531.packmate;
 
+import com.twitter.hpack.Encoder;
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.Test;
 import ru.serega6531.packmate.model.Packet;
+import ru.serega6531.packmate.service.optimization.Http2Parser;
 import ru.serega6531.packmate.service.optimization.HttpProcessor;
 import ru.serega6531.packmate.service.optimization.HttpUrldecodeProcessor;
 import ru.serega6531.packmate.service.optimization.PacketsMerger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class StreamOptimizerTest {
@@ -79,6 +88,149 @@ class StreamOptimizerTest {
         assertTrue(packets.get(0).getContentString().contains("Chunk1Chunk2"));
     }
 
+    @Test
+    void testPipelinedResponses() {
+        String content = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfirst" +
+                         "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n6\r\nsecond\r\n0\r\n\r\n" +
+                         "HTTP/1.1 204 No Content\r\n\r\n";
+
+        List<Packet> packets = new ArrayList<>(List.of(createPacket(content.getBytes(), false)));
+        new HttpProcessor().process(packets);
+
+        final String processed = packets.get(0).getContentString();
+        assertTrue(processed.contains("\r\n\r\nfirstHTTP/1.1 200 OK"));
+        assertTrue(processed.contains("\r\n\r\nsecondHTTP/1.1 204 No Content\r\n\r\n"));
+        assertTrue(packets.get(0).isHasHttpBody());
+    }
+
+    @Test
+    void testPipelinedHeadResponse() throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream os = new GZIPOutputStream(gzipped)) {
+            os.write("hello".getBytes());
+        }
+
+        final String headResponse = "HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: 100\r\n\r\n";
+        final byte[] responses = ArrayUtils.addAll(
+                (headResponse + "HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + gzipped.size() + "\r\n\r\n").getBytes(),
+                gzipped.toByteArray());
+
+        List<Packet> packets = new ArrayList<>(List.of(
+                createPacket("HEAD / HTTP/1.1\r\n\r\nGET / HTTP/1.1\r\n\r\n".getBytes(), true),
+                createPacket(responses, false)));
+        new HttpProcessor().process(packets);
+
+        final String processed = packets.get(1).getContentString();
+        assertTrue(processed.startsWith(headResponse + "HTTP/1.1 200 OK"));
+        assertTrue(processed.endsWith("\r\n\r\nhello"));
+    }
+
+    @Test
+    void testDeflateAndTruncatedChunks() throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream os = new DeflaterOutputStream(deflated)) {
+            os.write("cccddd".getBytes());
+        }
+
+        final byte[] deflateResponse = ArrayUtils.addAll(
+                ("HTTP/1.1 200 OK\r\nContent-Encoding: deflate\r\nContent-Length: " + deflated.size() + "\r\n\r\n").getBytes(),
+                deflated.toByteArray());
+        final byte[] truncatedResponse = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n4\r\neeee\r\n10\r\nff".getBytes();
+
+        List<Packet> packets = new ArrayList<>(List.of(
+                createPacket(deflateResponse, false),
+                createPacket(truncatedResponse, false)));
+        new HttpProcessor().process(packets);
+
+        assertTrue(packets.get(0).getContentString().endsWith("\r\n\r\ncccddd"));
+        assertTrue(packets.get(1).getContentString().endsWith("\r\n\r\neeeeff"));
+    }
+
+    @Test
+    void testDecodedBodyIsTruncated() throws IOException {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream os = new GZIPOutputStream(gzipped)) {
+            os.write(new byte[1024 * 1024]);
+        }
+
+        final String head = "HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + gzipped.size() + "\r\n\r\n";
+        final byte[] content = ArrayUtils.addAll(head.getBytes(), gzipped.toByteArray());
+
+        List<Packet> packets = new ArrayList<>(List.of(createPacket(content, false)));
+        new HttpProcessor(1000).process(packets);
+
+        assertEquals(head.length() + 1000, packets.get(0).getContent().length);
+    }
+
+    @Test
+    void testPlainRequestIsNotCopied() {
+        final byte[] content = "POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\nq=1GET / HTTP/1.1\r\n\r\n".getBytes();
+        Packet p = createPacket(content, true);
+
+        new HttpProcessor().process(new ArrayList<>(List.of(p)));
+
+        assertSame(content, p.getContent());
+        assertTrue(p.isHasHttpBody());
+    }
+
+    @Test
+    void testHttp2() throws IOException {
+        Encoder clientEncoder = new Encoder(4096);
+        Encoder serverEncoder = new Encoder(4096);
+
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        client.writeBytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes());
+        writeFrame(client, 0x4, 0, 0, new byte[0]);
+        writeFrame(client, 0x1, 0x4, 1, encodeHeaders(clientEncoder,
+                ":method", "POST", ":path", "/flags.Store/Put", "content-type", "application/grpc"));
+        writeFrame(client, 0x0, 0x1, 1, "FLAG_REQUEST".getBytes());
+        writeFrame(client, 0x1, 0x5, 3, encodeHeaders(clientEncoder,
+                ":method", "GET", ":path", "/second", "content-type", "application/grpc"));
+
+        ByteArrayOutputStream server = new ByteArrayOutputStream();
+        writeFrame(server, 0x4, 0, 0, new byte[0]);
+        writeFrame(server, 0x1, 0x4, 1, encodeHeaders(serverEncoder, ":status", "200"));
+        writeFrame(server, 0x0, 0, 1, "FLAG_RESPONSE".getBytes());
+        writeFrame(server, 0x1, 0x5, 1, encodeHeaders(serverEncoder, "grpc-status", "0"));
+
+        final byte[] clientBytes = client.toByteArray();
+        final int split = clientBytes.length / 2;  // кадры переходят из пакета в пакет
+
+        List<Packet> packets = new ArrayList<>(List.of(
+                createPacket(Arrays.copyOfRange(clientBytes, 0, split), true),
+                createPacket(Arrays.copyOfRange(clientBytes, split, clientBytes.length), true),
+                createPacket(server.toByteArray(), false)));
+
+        Http2Parser parser = new Http2Parser(packets);
+        assertTrue(parser.isParsed());
+
+        List<Packet> parsed = parser.getParsedPackets();
+        assertEquals(3, parsed.size());
+        assertTrue(parsed.get(0).getContentString().startsWith("POST /flags.Store/Put HTTP/2\r\n"));
+        assertTrue(parsed.get(0).getContentString().endsWith("\r\n\r\nFLAG_REQUEST"));
+        assertTrue(parsed.get(1).getContentString().startsWith("GET /second HTTP/2\r\ncontent-type: application/grpc\r\n"));
+        assertTrue(parsed.get(2).getContentString().startsWith("HTTP/2 200\r\n"));
+        assertTrue(parsed.get(2).getContentString().endsWith("FLAG_RESPONSE\r\ngrpc-status: 0\r\n"));
+    }
+
+    private byte[] encodeHeaders(Encoder encoder, String... headers) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i += 2) {
+            encoder.encodeHeader(os, headers[i].getBytes(), headers[i + 1].getBytes(), false);
+        }
+        return os.toByteArray();
+    }
+
+    private void writeFrame(ByteArrayOutputStream os, int type, int flags, int streamId, byte[] payload) {
+        os.write(payload.length >>> 16);
+        os.write(payload.length >>> 8);
+        os.write(payload.length);
+        os.write(type);
+        os.write(flags);
+        os.writeBytes(ByteBuffer.allocate(4).putInt(streamId).array());
+        os.writeBytes(payload);
+    }
+
     private Packet createPacket(int content, boolean incoming) {
         return createPacket(new byte[] {(byte) content}, incoming);
     }
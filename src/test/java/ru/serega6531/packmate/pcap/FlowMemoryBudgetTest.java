@@ -0,0 +1,42 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+public class FlowMemoryBudgetTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    @Test
+    public void testFlowLimit() {
+        FlowMemoryBudget budget = new FlowMemoryBudget(64 * MEGABYTE, 0, Path.of("."));
+
+        Assertions.assertFalse(budget.shouldSpill(64 * MEGABYTE - 100, 100));
+        Assertions.assertTrue(budget.shouldSpill(64 * MEGABYTE - 100, 101));
+    }
+
+    @Test
+    public void testGlobalLimitSpillsOnlyLargeFlows() {
+        FlowMemoryBudget budget = new FlowMemoryBudget(64 * MEGABYTE, 100 * MEGABYTE, Path.of("."));
+        budget.allocate(100 * MEGABYTE);
+
+        Assertions.assertFalse(budget.shouldSpill(200, 100));
+        Assertions.assertFalse(budget.shouldSpill(8 * MEGABYTE - 100, 100));
+        Assertions.assertTrue(budget.shouldSpill(8 * MEGABYTE, 100));
+
+        budget.free(50 * MEGABYTE);
+        Assertions.assertFalse(budget.shouldSpill(8 * MEGABYTE, 100));
+    }
+
+    @Test
+    public void testGlobalLimitWithoutFlowLimit() {
+        FlowMemoryBudget budget = new FlowMemoryBudget(0, 10 * MEGABYTE, Path.of("."));
+        budget.allocate(10 * MEGABYTE);
+
+        Assertions.assertFalse(budget.shouldSpill(1000, 100));
+        Assertions.assertTrue(budget.shouldSpill(MEGABYTE, 100));
+    }
+
+}
@@ -0,0 +1,93 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.serega6531.packmate.model.enums.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class FlowQueueTest {
+
+    private final FlowQueue queue = new FlowQueue();
+
+    @Test
+    public void testOrderedByLastActivity() {
+        final Flow a = flow(1);
+        final Flow b = flow(2);
+        final Flow c = flow(3);
+
+        queue.touch(a);
+        queue.touch(b);
+        queue.touch(c);
+        Assertions.assertEquals(List.of(a, b, c), drain());
+    }
+
+    @Test
+    public void testTouchMovesToEnd() {
+        final Flow a = flow(1);
+        final Flow b = flow(2);
+        final Flow c = flow(3);
+
+        queue.touch(a);
+        queue.touch(b);
+        queue.touch(c);
+
+        queue.touch(b);  // из середины
+        queue.touch(a);  // из начала
+        queue.touch(a);  // уже в конце
+        Assertions.assertEquals(3, queue.size());
+        Assertions.assertEquals(List.of(c, b, a), drain());
+    }
+
+    @Test
+    public void testRemove() {
+        final Flow a = flow(1);
+        final Flow b = flow(2);
+        final Flow c = flow(3);
+        final Flow d = flow(4);
+
+        queue.touch(a);
+        queue.touch(b);
+        queue.touch(c);
+        queue.touch(d);
+
+        queue.remove(b);  // из середины
+        queue.remove(a);  // из начала
+        queue.remove(d);  // из конца
+        queue.remove(d);  // уже удален
+        Assertions.assertEquals(1, queue.size());
+        Assertions.assertSame(c, queue.peekOldest());
+
+        queue.touch(a);
+        Assertions.assertEquals(List.of(c, a), drain());
+    }
+
+    @Test
+    public void testEmpty() {
+        Assertions.assertNull(queue.peekOldest());
+        Assertions.assertEquals(0, queue.size());
+
+        final Flow a = flow(1);
+        queue.touch(a);
+        queue.remove(a);
+        Assertions.assertNull(queue.peekOldest());
+        Assertions.assertEquals(0, queue.size());
+    }
+
+    private List<Flow> drain() {
+        final List<Flow> flows = new ArrayList<>();
+        Flow flow;
+        while ((flow = queue.peekOldest()) != null) {
+            flows.add(flow);
+            queue.remove(flow);
+        }
+        Assertions.assertEquals(0, queue.size());
+        return flows;
+    }
+
+    private static Flow flow(int port) {
+        return new Flow(new FlowKey(0, 0xFFFF_0A00_0001L, port, 0, 0xFFFF_0A00_0002L, 80, Protocol.TCP));
+    }
+
+}
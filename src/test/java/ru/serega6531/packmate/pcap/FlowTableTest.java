@@ -0,0 +1,205 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.serega6531.packmate.model.enums.Protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class FlowTableTest {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF_0000_0000L;
+
+    private final FlowTable table = new FlowTable();
+    private int nextKey = 0;
+
+    @Test
+    public void testCollidingInserts() {
+        final List<FlowKey> keys = keysWithHome(10, 5);
+        final List<Flow> flows = new ArrayList<>();
+
+        for (FlowKey key : keys) {
+            flows.add(table.getOrCreate(key));
+        }
+
+        Assertions.assertEquals(5, table.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Assertions.assertSame(flows.get(i), table.get(keys.get(i)));
+            Assertions.assertSame(flows.get(i), table.getOrCreate(keys.get(i)));
+            Assertions.assertEquals(keys.get(i), flows.get(i).key);
+        }
+        Assertions.assertEquals(5, table.size());
+    }
+
+    @Test
+    public void testReverseDirectionIsSameFlow() {
+        final FlowKey key = new FlowKey(0, IPV4_MAPPED_PREFIX | 1, 80, 0, IPV4_MAPPED_PREFIX | 2, 5000, Protocol.TCP);
+        final FlowKey reverse = new FlowKey(0, IPV4_MAPPED_PREFIX | 2, 5000, 0, IPV4_MAPPED_PREFIX | 1, 80, Protocol.TCP);
+        final FlowKey udp = new FlowKey(0, IPV4_MAPPED_PREFIX | 1, 80, 0, IPV4_MAPPED_PREFIX | 2, 5000, Protocol.UDP);
+
+        final Flow flow = table.getOrCreate(key);
+        Assertions.assertSame(flow, table.get(reverse));
+        Assertions.assertNotSame(flow, table.getOrCreate(udp));
+        Assertions.assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testRemoveFromMiddleOfProbeChain() {
+        // цепочка: три ключа с ячейкой 20, за ними два с ячейкой 21 и один с ячейкой 23
+        final List<FlowKey> keys = new ArrayList<>(keysWithHome(20, 3));
+        keys.addAll(keysWithHome(21, 2));
+        keys.addAll(keysWithHome(23, 1));
+
+        final Map<FlowKey, Flow> flows = insertAll(keys);
+
+        final FlowKey removed = keys.get(1);
+        table.remove(flows.remove(removed));
+
+        Assertions.assertNull(table.get(removed));
+        assertContains(flows);
+
+        table.remove(flows.remove(keys.get(3)));
+        assertContains(flows);
+
+        final Flow recreated = table.getOrCreate(removed);
+        Assertions.assertNotNull(recreated);
+        flows.put(removed, recreated);
+        assertContains(flows);
+    }
+
+    @Test
+    public void testRemoveAbsentFlowDoesNothing() {
+        final List<FlowKey> keys = keysWithHome(5, 2);
+        final Map<FlowKey, Flow> flows = insertAll(keys.subList(0, 1));
+
+        table.remove(new Flow(keys.get(1)));
+
+        Assertions.assertEquals(1, table.size());
+        assertContains(flows);
+    }
+
+    @Test
+    public void testWrapAroundAtTableEnd() {
+        final int last = table.capacity() - 1;
+
+        // три ключа с последней ячейкой занимают ее и две первые, ключ с ячейкой 0 уходит в третью
+        final List<FlowKey> keys = new ArrayList<>(keysWithHome(last, 3));
+        keys.addAll(keysWithHome(0, 1));
+        keys.addAll(keysWithHome(1, 1));
+
+        final Map<FlowKey, Flow> flows = insertAll(keys);
+
+        for (FlowKey key : keys) {
+            table.remove(flows.remove(key));
+            Assertions.assertNull(table.get(key));
+            assertContains(flows);
+        }
+
+        Assertions.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testGrowAndShrink() {
+        final int initialCapacity = table.capacity();
+
+        final List<FlowKey> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(nextKey());
+        }
+        final Map<FlowKey, Flow> flows = insertAll(keys);
+
+        Assertions.assertTrue(table.capacity() * 3 >= table.size() * 4);
+        assertContains(flows);
+
+        final int grownCapacity = table.capacity();
+        for (FlowKey key : keys.subList(10, keys.size())) {
+            table.remove(flows.remove(key));
+        }
+
+        Assertions.assertEquals(grownCapacity, table.capacity());  // удаление само таблицу не уменьшает
+        assertContains(flows);
+
+        table.shrinkIfSparse();
+        Assertions.assertTrue(table.capacity() < grownCapacity);
+        Assertions.assertTrue(table.capacity() >= initialCapacity);
+        Assertions.assertEquals(10, table.size());
+        assertContains(flows);
+
+        for (FlowKey key : keys.subList(0, 10)) {
+            table.remove(flows.remove(key));
+        }
+        table.shrinkIfSparse();
+        Assertions.assertEquals(initialCapacity, table.capacity());
+    }
+
+    @Test
+    public void testRandomOperationsMatchHashMap() {
+        final Random random = new Random(1);
+        final List<FlowKey> keys = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            keys.add(nextKey());
+        }
+
+        final Map<FlowKey, Flow> flows = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            final FlowKey key = keys.get(random.nextInt(keys.size()));
+
+            if (random.nextInt(3) == 0) {
+                final Flow flow = flows.remove(key);
+                Assertions.assertSame(flow, table.get(key));
+                if (flow != null) {
+                    table.remove(flow);
+                }
+            } else {
+                final Flow flow = table.getOrCreate(key);
+                Assertions.assertSame(flows.computeIfAbsent(key, k -> flow), flow);
+            }
+
+            Assertions.assertEquals(flows.size(), table.size());
+            if (i % 5000 == 0) {
+                table.shrinkIfSparse();
+            }
+        }
+
+        assertContains(flows);
+    }
+
+    private Map<FlowKey, Flow> insertAll(List<FlowKey> keys) {
+        final Map<FlowKey, Flow> flows = new HashMap<>();
+        for (FlowKey key : keys) {
+            flows.put(key, table.getOrCreate(key));
+        }
+        Assertions.assertEquals(keys.size(), table.size());
+        return flows;
+    }
+
+    private void assertContains(Map<FlowKey, Flow> flows) {
+        Assertions.assertEquals(flows.size(), table.size());
+        flows.forEach((key, flow) -> Assertions.assertSame(flow, table.get(key)));
+    }
+
+    /**
+     * Разные ключи, которые при текущей емкости таблицы начинаются с одной ячейки
+     */
+    private List<FlowKey> keysWithHome(int slot, int count) {
+        final List<FlowKey> keys = new ArrayList<>(count);
+        while (keys.size() < count) {
+            final FlowKey key = nextKey();
+            if (table.homeSlot(key) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private FlowKey nextKey() {
+        final int n = nextKey++;
+        return new FlowKey(0, IPV4_MAPPED_PREFIX | 0x0A000001L, 80,
+                0, IPV4_MAPPED_PREFIX | (0x0A010000L + (n >>> 14)), 1024 + (n & 0x3FFF), Protocol.TCP);
+    }
+
+}
@@ -0,0 +1,45 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.serega6531.packmate.model.enums.Protocol;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class MappedPcapReaderTest {
+
+    @Test
+    public void testReadDump() throws IOException {
+        int udp = 0;
+        int tcp = 0;
+        int fins = 0;
+        long payloadBytes = 0;
+
+        try (MappedPcapReader reader = MappedPcapReader.open(Path.of("pcaps", "dump.pcap"))) {
+            Assertions.assertNotNull(reader);
+
+            DecodedPacket packet = new DecodedPacket();
+            while (reader.next(packet)) {
+                Assertions.assertTrue(packet.decoded);
+
+                if (packet.protocol == Protocol.UDP) {
+                    udp++;
+                } else {
+                    tcp++;
+                    if (packet.fin) {
+                        fins++;
+                    }
+                }
+
+                payloadBytes += packet.copyPayload().length;
+            }
+        }
+
+        Assertions.assertEquals(9, udp);
+        Assertions.assertEquals(20, tcp);
+        Assertions.assertEquals(4, fins);
+        Assertions.assertEquals(2798, payloadBytes);
+    }
+
+}
@@ -0,0 +1,126 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.pcap4j.packet.EthernetPacket;
+import org.pcap4j.packet.IllegalRawDataException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PacketDecoderTest {
+
+    @Test
+    public void testSameAsPcap4j() throws IOException, IllegalRawDataException {
+        final List<byte[]> frames = readFrames(Path.of("pcaps", "dump.pcap"));
+        Assertions.assertFalse(frames.isEmpty());
+
+        for (byte[] frame : frames) {
+            DecodedPacket raw = new DecodedPacket();
+            DecodedPacket pcap4j = new DecodedPacket();
+
+            boolean rawDecoded = PacketDecoder.decode(PacketDecoder.LINKTYPE_ETHERNET, ByteBuffer.wrap(frame), 0, frame.length, raw);
+            boolean pcap4jDecoded = AbstractPcapWorker.decodePcap4jPacket(EthernetPacket.newPacket(frame, 0, frame.length), pcap4j);
+
+            Assertions.assertEquals(pcap4jDecoded, rawDecoded);
+            Assertions.assertEquals(pcap4j.protocol, raw.protocol);
+            Assertions.assertEquals(pcap4j.sourceHi, raw.sourceHi);
+            Assertions.assertEquals(pcap4j.sourceLo, raw.sourceLo);
+            Assertions.assertEquals(pcap4j.destHi, raw.destHi);
+            Assertions.assertEquals(pcap4j.destLo, raw.destLo);
+            Assertions.assertEquals(pcap4j.sourcePort, raw.sourcePort);
+            Assertions.assertEquals(pcap4j.destPort, raw.destPort);
+            Assertions.assertEquals(pcap4j.ttl, raw.ttl);
+            Assertions.assertEquals(pcap4j.ack, raw.ack);
+            Assertions.assertEquals(pcap4j.fin, raw.fin);
+            Assertions.assertEquals(pcap4j.syn, raw.syn);
+            Assertions.assertEquals(pcap4j.sequence, raw.sequence);
+            Assertions.assertEquals(pcap4j.rst, raw.rst);
+            Assertions.assertArrayEquals(pcap4j.copyPayload(), raw.copyPayload());
+        }
+    }
+
+    /**
+     * Сравнение скорости разбора заголовков. Результат только выводится: время зависит от машины.
+     * Не входит в обычный запуск тестов, запускается задачей benchmark.
+     */
+    @Test
+    @Tag("benchmark")
+    public void benchmarkAgainstPcap4j() throws IOException, IllegalRawDataException {
+        final List<byte[]> frames = readFrames(Path.of("pcaps", "dump.pcap"));
+        final int rounds = 20_000;
+        final DecodedPacket packet = new DecodedPacket();
+
+        // прогрев
+        runRaw(frames, rounds / 10, packet);
+        runPcap4j(frames, rounds / 10, packet);
+
+        long start = System.nanoTime();
+        long rawBytes = runRaw(frames, rounds, packet);
+        long rawTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long pcap4jBytes = runPcap4j(frames, rounds, packet);
+        long pcap4jTime = System.nanoTime() - start;
+
+        Assertions.assertEquals(pcap4jBytes, rawBytes);
+
+        long packets = (long) rounds * frames.size();
+        System.out.printf("raw decoder: %d ns/packet, pcap4j: %d ns/packet%n",
+                rawTime / packets, pcap4jTime / packets);
+    }
+
+    private long runRaw(List<byte[]> frames, int rounds, DecodedPacket packet) {
+        long bytes = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] frame : frames) {
+                packet.reset(0);
+                if (PacketDecoder.decode(PacketDecoder.LINKTYPE_ETHERNET, ByteBuffer.wrap(frame), 0, frame.length, packet)) {
+                    bytes += packet.copyPayload().length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private long runPcap4j(List<byte[]> frames, int rounds, DecodedPacket packet) throws IllegalRawDataException {
+        long bytes = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] frame : frames) {
+                packet.reset(0);
+                if (AbstractPcapWorker.decodePcap4jPacket(EthernetPacket.newPacket(frame, 0, frame.length), packet)) {
+                    bytes += packet.copyPayload().length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Кадры из классического pcap файла с порядком байт little-endian
+     */
+    private List<byte[]> readFrames(Path path) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        final List<byte[]> frames = new ArrayList<>();
+
+        buf.position(24);
+        while (buf.remaining() >= 16) {
+            buf.position(buf.position() + 8);
+            int capturedLength = buf.getInt();
+            buf.getInt();
+
+            byte[] frame = new byte[capturedLength];
+            buf.get(frame);
+            frames.add(frame);
+        }
+
+        return frames;
+    }
+
+}
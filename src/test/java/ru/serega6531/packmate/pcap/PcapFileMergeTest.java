@@ -0,0 +1,96 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PcapFileMergeTest {
+
+    // больше, чем помещается в очередь пачек одного файла
+    private static final int PACKETS_PER_FILE = 5000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testMoreOverlappingFilesThanReaders() throws IOException {
+        assertMerged(5, 4);
+    }
+
+    @Test
+    public void testSingleReader() throws IOException {
+        assertMerged(3, 1);
+    }
+
+    private void assertMerged(int filesCount, int readerThreads) throws IOException {
+        final List<PcapFileSource> sources = new ArrayList<>(filesCount);
+        for (int i = 0; i < filesCount; i++) {
+            sources.add(PcapFileSource.open(writeDump(i, filesCount)));
+        }
+
+        final PcapFileMerge merge = new PcapFileMerge(sources, readerThreads);
+
+        try {
+            final long packets = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                long count = 0;
+                long lastTimestamp = -1;
+
+                DecodedPacket packet;
+                while ((packet = merge.next()) != null) {
+                    Assertions.assertTrue(packet.decoded);
+                    Assertions.assertEquals(lastTimestamp + 1, packet.timestamp);
+                    Assertions.assertEquals(packet.timestamp % filesCount, packet.sourcePort - 1000);
+                    lastTimestamp = packet.timestamp;
+                    count++;
+                }
+
+                return count;
+            });
+
+            Assertions.assertEquals((long) filesCount * PACKETS_PER_FILE, packets);
+        } finally {
+            merge.close();
+        }
+    }
+
+    /**
+     * Файлы записаны одновременно: пакеты файла index идут с метками index, index + filesCount, ...
+     */
+    private Path writeDump(int index, int filesCount) throws IOException {
+        final int frameLength = 14 + 20 + 8 + 4;
+        final ByteBuffer buf = ByteBuffer.allocate(24 + PACKETS_PER_FILE * (16 + frameLength))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                .putInt(65535).putInt(PacketDecoder.LINKTYPE_ETHERNET);
+
+        for (int i = 0; i < PACKETS_PER_FILE; i++) {
+            final long millis = (long) i * filesCount + index;
+            buf.order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) (millis / 1000)).putInt((int) (millis % 1000) * 1000)
+                    .putInt(frameLength).putInt(frameLength);
+
+            buf.order(ByteOrder.BIG_ENDIAN);
+            buf.put(new byte[12]).putShort((short) 0x0800);
+            buf.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 8 + 4)).putInt(0)
+                    .put((byte) 64).put((byte) 17).putShort((short) 0)
+                    .putInt(0x0A000001).putInt(0x0A000002);
+            buf.putShort((short) (1000 + index)).putShort((short) 80).putShort((short) (8 + 4)).putShort((short) 0);
+            buf.putInt(i);
+        }
+
+        final Path path = directory.resolve("dump" + index + ".pcap");
+        Files.write(path, buf.array());
+        return path;
+    }
+
+}
@@ -0,0 +1,61 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.serega6531.packmate.model.Packet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SpilledPayloadsTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRestore() throws IOException {
+        final List<Packet> packets = spill(1000, 100, 100, 100);
+
+        Assertions.assertArrayEquals(content(0, 100), packets.get(0).getContent());
+        Assertions.assertArrayEquals(content(1, 100), packets.get(1).getContent());
+        Assertions.assertArrayEquals(content(2, 100), packets.get(2).getContent());
+    }
+
+    @Test
+    public void testRestoreIsTruncated() throws IOException {
+        final List<Packet> packets = spill(250, 100, 100, 100, 100);
+
+        Assertions.assertArrayEquals(content(0, 100), packets.get(0).getContent());
+        Assertions.assertArrayEquals(content(1, 100), packets.get(1).getContent());
+        Assertions.assertArrayEquals(content(2, 50), packets.get(2).getContent());
+        Assertions.assertEquals(0, packets.get(3).getContent().length);
+    }
+
+    private List<Packet> spill(long restoreLimit, int... lengths) throws IOException {
+        final SpillFile file = SpillFile.create(directory);
+        final SpilledPayloads spilled = new SpilledPayloads(restoreLimit);
+        final List<Packet> packets = new ArrayList<>();
+
+        for (int i = 0; i < lengths.length; i++) {
+            final Packet packet = Packet.builder().build();
+            final long offset = file.append(content(i, lengths[i]));
+            spilled.add(packet, file, offset, lengths[i]);
+            packets.add(packet);
+        }
+
+        file.seal();
+        spilled.restore();
+        return packets;
+    }
+
+    private byte[] content(int index, int length) {
+        final byte[] content = new byte[length];
+        Arrays.fill(content, (byte) ('a' + index));
+        return content;
+    }
+
+}
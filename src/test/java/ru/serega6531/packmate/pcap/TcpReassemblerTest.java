@@ -0,0 +1,182 @@
+package ru.serega6531.packmate.pcap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TcpReassemblerTest {
+
+    private final TcpReassembler reassembler = new TcpReassembler();
+    private final ByteArrayOutputStream incoming = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream outgoing = new ByteArrayOutputStream();
+    private final List<String> order = new ArrayList<>();
+
+    @Test
+    public void testInOrder() {
+        accept(true, 1000, true, "");
+        accept(true, 1001, false, "GET / ");
+        accept(true, 1007, false, "HTTP/1.1");
+
+        Assertions.assertEquals("GET / HTTP/1.1", incoming.toString());
+    }
+
+    @Test
+    public void testRetransmitAndOverlap() {
+        accept(true, 99, true, "");
+        accept(true, 100, false, "abc");
+        accept(true, 100, false, "abc");
+        accept(true, 101, false, "bcdef");
+
+        Assertions.assertEquals("abcdef", incoming.toString());
+        Assertions.assertEquals(5, reassembler.getRetransmittedBytes());
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        accept(true, 0xFFFF_FFFFL, true, "");
+        accept(true, 0, false, "ab");
+        accept(true, 4, false, "ef");
+        accept(true, 6, false, "gh");
+        Assertions.assertEquals("ab", incoming.toString());
+
+        accept(true, 2, false, "cd");
+        Assertions.assertEquals("abcdefgh", incoming.toString());
+        Assertions.assertEquals(2, reassembler.getReorderedSegments());
+    }
+
+    @Test
+    public void testDirectionsAreIndependent() {
+        accept(true, 9, true, "");
+        accept(false, 4999, true, "");
+        accept(true, 10, false, "req");
+        accept(false, 5000, false, "resp");
+        accept(true, 13, false, "uest");
+
+        Assertions.assertEquals("request", incoming.toString());
+        Assertions.assertEquals("resp", outgoing.toString());
+    }
+
+    @Test
+    public void testBothEndsLocal() {
+        // оба пакета входящие, направление определяется отправителем
+        reassembler.accept(true, true, 9, true, 0, 64, new byte[0], this::collect);
+        reassembler.accept(false, true, 4999, true, 0, 64, new byte[0], this::collect);
+        reassembler.accept(true, true, 10, false, 0, 64, "req".getBytes(), this::collect);
+        reassembler.accept(false, true, 5000, false, 0, 64, "resp".getBytes(), this::collect);
+        reassembler.accept(true, true, 13, false, 0, 64, "uest".getBytes(), this::collect);
+
+        Assertions.assertEquals("reqrespuest", incoming.toString());
+        Assertions.assertEquals(0, outgoing.size());
+        Assertions.assertEquals(0, reassembler.getReorderedSegments());
+        Assertions.assertEquals(0, reassembler.getGaps());
+    }
+
+    @Test
+    public void testFirstSegmentOutOfOrder() {
+        // syn не виден, первым пришел не первый сегмент
+        accept(true, 2, false, "cd");
+        accept(true, 0, false, "ab");
+        accept(true, 4, false, "ef");
+
+        reassembler.flush(this::collect);
+        Assertions.assertEquals("abcdef", incoming.toString());
+        Assertions.assertEquals(0, reassembler.getRetransmittedBytes());
+        Assertions.assertEquals(1, reassembler.getReorderedSegments());
+        Assertions.assertEquals(0, reassembler.getGaps());
+    }
+
+    @Test
+    public void testExchangeWithoutSynIsInterleaved() {
+        accept(true, 100, false, 1, "req1");
+        accept(false, 5000, false, 2, "resp1");
+        accept(true, 104, false, 3, "req2");
+        accept(false, 5005, false, 4, "resp2");
+        reassembler.flush(this::collect);
+
+        Assertions.assertEquals(List.of(">req1", "<resp1", ">req2", "<resp2"), order);
+    }
+
+    @Test
+    public void testUnanchoredWindowIsBounded() {
+        for (int i = 0; i <= TcpReassembler.UNANCHORED_SEGMENTS; i++) {
+            accept(true, 100 + i, false, "x");
+        }
+
+        Assertions.assertEquals(TcpReassembler.UNANCHORED_SEGMENTS + 1, incoming.size());
+        Assertions.assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    @Test
+    public void testFlushMergesDirectionsByTime() {
+        accept(true, 99, true, "");
+        accept(false, 4999, true, "");
+        accept(true, 110, false, 1, "c1");
+        accept(false, 5010, false, 2, "s1");
+        accept(true, 120, false, 3, "c2");
+        reassembler.flush(this::collect);
+
+        Assertions.assertEquals(List.of(">c1", "<s1", ">c2"), order);
+    }
+
+    @Test
+    public void testLateSynOrdersWaitingSegments() {
+        accept(true, 1004, false, "lo");
+        accept(true, 1001, false, "hel");
+        accept(true, 1000, true, "");
+
+        Assertions.assertEquals("hello", incoming.toString());
+        Assertions.assertEquals(0, reassembler.getRetransmittedBytes());
+    }
+
+    @Test
+    public void testSequenceWrap() {
+        accept(true, 0xFFFF_FFFDL, true, "");
+        accept(true, 0xFFFF_FFFEL, false, "ab");
+        accept(true, 2, false, "ef");
+        accept(true, 0, false, "cd");
+
+        Assertions.assertEquals("abcdef", incoming.toString());
+    }
+
+    @Test
+    public void testGapIsSkippedOnFlush() {
+        accept(true, 0xFFFF_FFFFL, true, "");
+        accept(true, 0, false, "ab");
+        accept(true, 10, false, "xy");
+        Assertions.assertEquals("ab", incoming.toString());
+
+        reassembler.flush(this::collect);
+        Assertions.assertEquals("abxy", incoming.toString());
+        Assertions.assertEquals(1, reassembler.getGaps());
+    }
+
+    @Test
+    public void testGapIsSkippedWhenWindowIsFull() {
+        accept(true, 0, false, "ab");
+
+        byte[] large = new byte[TcpReassembler.MAX_PENDING_BYTES + 1];
+        reassembler.accept(true, true, 100, false, 0, 64, large, this::collect);
+
+        Assertions.assertEquals(2 + large.length, incoming.size());
+        Assertions.assertEquals(1, reassembler.getGaps());
+    }
+
+    private void accept(boolean fromClient, long sequence, boolean syn, String content) {
+        accept(fromClient, sequence, syn, 0, content);
+    }
+
+    private void accept(boolean fromClient, long sequence, boolean syn, long time, String content) {
+        reassembler.accept(fromClient, fromClient, sequence, syn, time, 64, content.getBytes(), this::collect);
+    }
+
+    private void collect(boolean fromClient, long time, int ttl, byte[] content) {
+        (fromClient ? incoming : outgoing).writeBytes(content);
+        if (content.length > 0) {
+            order.add((fromClient ? ">" : "<") + new String(content));
+        }
+    }
+
+}